@@ -21,6 +21,7 @@ import mapwriter.overlay.OverlaySlime;
 import mapwriter.region.BlockColours;
 import mapwriter.region.RegionManager;
 import mapwriter.tasks.CloseRegionManagerTask;
+import mapwriter.tasks.UpdateZoomLevelsTask;
 import mapwriter.util.Logging;
 import mapwriter.util.Reference;
 import mapwriter.util.Render;
@@ -532,6 +533,14 @@ public class Mw
 				maxTasks--;
 			}
 
+			// update the zoomed out map levels while there is nothing else
+			// for the background thread to do. the task also saves the
+			// changes of the loaded regions when they are due to be flushed.
+			if ((this.executor.tasksRemaining() == 0) && (this.regionManager.hasZoomLevelUpdates() || this.regionManager.isFlushDue()))
+			{
+				this.executor.addTask(new UpdateZoomLevelsTask(this.regionManager));
+			}
+
 			this.chunkManager.onTick();
 
 			// update GL texture of mapTexture if updated
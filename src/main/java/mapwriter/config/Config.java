@@ -11,6 +11,13 @@ public class Config
 			"mw.config.backgroundTextureMode.panning"
 	};
 
+	public static final String[] regionFileCompressionStringArray =
+	{
+			"mw.config.regionFileCompression.deflate",
+			"mw.config.regionFileCompression.lz",
+			"mw.config.regionFileCompression.none"
+	};
+
 	// configuration options
 	public static boolean linearTextureScalingDef = true;
 	public static boolean linearTextureScaling = linearTextureScalingDef;
@@ -48,6 +55,26 @@ public class Config
 	public static boolean regionFileOutputEnabledSP = regionFileOutputEnabledSPDef;
 	public static boolean regionFileOutputEnabledMPDef = true;
 	public static boolean regionFileOutputEnabledMP = regionFileOutputEnabledMPDef;
+	public static boolean regionFileMappedReadsDef = true;
+	public static boolean regionFileMappedReads = regionFileMappedReadsDef;
+	public static int regionFileCacheSizeDef = 32;
+	public static int regionFileCacheSize = regionFileCacheSizeDef;
+	public static int chunkCacheSizeMBDef = 32;
+	public static int chunkCacheSizeMB = chunkCacheSizeMBDef;
+	public static boolean tileSlabStoreDef = false;
+	public static boolean tileSlabStore = tileSlabStoreDef;
+	public static int regionCacheSizeMBDef = 0;
+	public static int regionCacheSizeMB = regionCacheSizeMBDef;
+	public static boolean regionPaletteEncodingDef = true;
+	public static boolean regionPaletteEncoding = regionPaletteEncodingDef;
+	public static int regionFileCompactThresholdDef = 50;
+	public static int regionFileCompactThreshold = regionFileCompactThresholdDef;
+	public static String regionFileCompressionDef = regionFileCompressionStringArray[0];
+	public static String regionFileCompression = regionFileCompressionDef;
+	public static int regionFileCompressionLevelDef = 6;
+	public static int regionFileCompressionLevel = regionFileCompressionLevelDef;
+	public static boolean regionFileAdaptiveCompressionDef = true;
+	public static boolean regionFileAdaptiveCompression = regionFileAdaptiveCompressionDef;
 	public static String backgroundTextureModeDef = backgroundModeStringArray[0];
 	public static String backgroundTextureMode = backgroundTextureModeDef;
 	public static boolean moreRealisticMapDef = false;
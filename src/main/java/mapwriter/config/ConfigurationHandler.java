@@ -133,6 +133,77 @@ public class ConfigurationHandler
 				Config.regionFileOutputEnabledMPDef,
 				"",
 				"mw.config.regionFileOutputEnabledMP");
+		Config.regionFileMappedReads = configuration.getBoolean(
+				"regionFileMappedReads",
+				Reference.catOptions,
+				Config.regionFileMappedReadsDef,
+				"",
+				"mw.config.regionFileMappedReads");
+		Config.regionFileCacheSize = configuration.getInt(
+				"regionFileCacheSize",
+				Reference.catOptions,
+				Config.regionFileCacheSizeDef,
+				1,
+				256,
+				"",
+				"mw.config.regionFileCacheSize");
+		Config.chunkCacheSizeMB = configuration.getInt(
+				"chunkCacheSizeMB",
+				Reference.catOptions,
+				Config.chunkCacheSizeMBDef,
+				0,
+				1024,
+				"",
+				"mw.config.chunkCacheSizeMB");
+		Config.tileSlabStore = configuration.getBoolean(
+				"tileSlabStore",
+				Reference.catOptions,
+				Config.tileSlabStoreDef,
+				"",
+				"mw.config.tileSlabStore");
+		Config.regionCacheSizeMB = configuration.getInt(
+				"regionCacheSizeMB",
+				Reference.catOptions,
+				Config.regionCacheSizeMBDef,
+				0,
+				4096,
+				"",
+				"mw.config.regionCacheSizeMB");
+		Config.regionPaletteEncoding = configuration.getBoolean(
+				"regionPaletteEncoding",
+				Reference.catOptions,
+				Config.regionPaletteEncodingDef,
+				"",
+				"mw.config.regionPaletteEncoding");
+		Config.regionFileCompactThreshold = configuration.getInt(
+				"regionFileCompactThreshold",
+				Reference.catOptions,
+				Config.regionFileCompactThresholdDef,
+				0,
+				100,
+				"",
+				"mw.config.regionFileCompactThreshold");
+		Config.regionFileCompression = configuration.getString(
+				"regionFileCompression",
+				Reference.catOptions,
+				Config.regionFileCompressionDef,
+				"",
+				Config.regionFileCompressionStringArray,
+				"mw.config.regionFileCompression");
+		Config.regionFileCompressionLevel = configuration.getInt(
+				"regionFileCompressionLevel",
+				Reference.catOptions,
+				Config.regionFileCompressionLevelDef,
+				1,
+				9,
+				"",
+				"mw.config.regionFileCompressionLevel");
+		Config.regionFileAdaptiveCompression = configuration.getBoolean(
+				"regionFileAdaptiveCompression",
+				Reference.catOptions,
+				Config.regionFileAdaptiveCompressionDef,
+				"",
+				"mw.config.regionFileAdaptiveCompression");
 		Config.backgroundTextureMode = configuration.getString(
 				"backgroundTextureMode",
 				Reference.catOptions,
@@ -299,7 +299,9 @@ public class MwGui extends GuiScreen
 				I18n.format("mw.gui.mwgui.chatmsg.merge", this.mw.worldDir.getAbsolutePath()));
 	}
 
-	public void regenerateView()
+	// an incremental regenerate only re-renders chunks that have been saved
+	// since they were last drawn
+	public void regenerateView(boolean incremental)
 	{
 		Utils.printBoth(
 				I18n.format(
@@ -316,7 +318,8 @@ public class MwGui extends GuiScreen
 						(int) this.mapView.getMinZ(),
 						(int) this.mapView.getWidth(),
 						(int) this.mapView.getHeight(),
-						this.mapView.getDimension()));
+						this.mapView.getDimension(),
+						incremental));
 	}
 
 	// c is the ascii equivalent of the key typed.
@@ -405,7 +408,9 @@ public class MwGui extends GuiScreen
 			break;
 
 		case Keyboard.KEY_R:
-			this.regenerateView();
+			// shift-R only regenerates the chunks saved since they were
+			// last drawn
+			this.regenerateView(isShiftKeyDown());
 			this.exitGui();
 			break;
 
@@ -8,6 +8,7 @@ import org.lwjgl.opengl.GL11;
 import mapwriter.BackgroundExecutor;
 import mapwriter.region.Region;
 import mapwriter.region.RegionManager;
+import mapwriter.region.TilePixels;
 import mapwriter.tasks.MapUpdateViewTask;
 import mapwriter.util.Texture;
 
@@ -21,6 +22,9 @@ public class MapTexture extends Texture
 	private MapViewRequest requestedView = null;
 
 	private Region[] regionArray;
+	// row of region pixels being copied to the texture, only used by the
+	// background thread
+	private final int[] rowPixels = new int[Region.SIZE];
 
 	// accessed from both render and background thread.
 	// make sure all methods using it are synchronized.
@@ -89,29 +93,6 @@ public class MapTexture extends Texture
 	// methods below this point run in the background thread
 	//
 
-	public synchronized void setRGBOpaque(int x, int y, int w, int h, int[] pixels, int offset, int scanSize)
-	{
-		// TODO: Remove the need for this function. It would better if the
-		// region pixels were stored as normal pixels (without the height in
-		// the alpha channel). Then we could just directly copy the pixels
-		// to the texture pixelBuf.
-		int bufOffset = (y * this.w) + x;
-		for (int i = 0; i < h; i++)
-		{
-			this.setPixelBufPosition(bufOffset + (i * this.w));
-			int rowOffset = offset + (i * scanSize);
-			for (int j = 0; j < w; j++)
-			{
-				int colour = pixels[rowOffset + j];
-				if (colour != 0)
-				{
-					colour |= 0xff000000;
-				}
-				this.pixelBufPut(colour);
-			}
-		}
-	}
-
 	public void addTextureUpdate(int x, int z, int w, int h)
 	{
 		synchronized (this.textureUpdateQueue)
@@ -134,14 +115,26 @@ public class MapTexture extends Texture
 		// MwUtil.log("updateTextureFromRegion: region %s, %d %d %d %d -> %d %d %d %d",
 		// region, x, z, w, h, tx, ty, tw, th);
 
-		int[] pixels = region.getPixels();
-		if (pixels != null)
+		TilePixels tile = region.getTilePixels();
+		if (tile == null)
+		{
+			this.fillRect(tx, ty, tw, th, 0x00000000);
+		}
+		else if (tile.isUniform())
 		{
-			this.setRGBOpaque(tx, ty, tw, th, pixels, region.getPixelOffset(x, z), Region.SIZE);
+			this.fillRect(tx, ty, tw, th, tile.getFillColour());
 		}
 		else
 		{
-			this.fillRect(tx, ty, tw, th, 0x00000000);
+			// region pixels are stored ready to upload, with unexplored
+			// pixels transparent
+			int px = (x >> region.zoomLevel) & (Region.SIZE - 1);
+			int pz = (z >> region.zoomLevel) & (Region.SIZE - 1);
+			for (int j = 0; j < th; j++)
+			{
+				tile.getRow(px, pz + j, tw, this.rowPixels, 0);
+				this.setRGB(tx, ty + j, tw, 1, this.rowPixels, 0, tw);
+			}
 		}
 
 		this.addTextureUpdate(tx, ty, tw, th);
@@ -164,6 +157,10 @@ public class MapTexture extends Texture
 		if ((currentRegion == null) || (!currentRegion.equals(x, z, zoomLevel, dimension)))
 		{
 			Region newRegion = regionManager.getRegion(x, z, zoomLevel, dimension);
+			regionManager.updateZoomLevels(newRegion.x, newRegion.z, newRegion.size, newRegion.size, newRegion.zoomLevel, dimension);
+			// updating the zoom levels may have evicted the region from the
+			// region cache, get the loaded one again
+			newRegion = regionManager.getRegion(newRegion.x, newRegion.z, newRegion.zoomLevel, dimension);
 			this.regionArray[index] = newRegion;
 			this.updateTextureFromRegion(newRegion, newRegion.x, newRegion.z, newRegion.size, newRegion.size);
 			// regionManager.logInfo("regionArray[%d] = %s", index, newRegion);
@@ -196,6 +193,13 @@ public class MapTexture extends Texture
 			Region region = this.regionArray[i];
 			if ((region != null) && (region.isAreaWithin(x, z, w, h, dimension)))
 			{
+				// bring the zoom level shown up to date with the change
+				regionManager.updateZoomLevels(x, z, w, h, region.zoomLevel, dimension);
+				// the region shown may have been evicted from the region
+				// cache since it was loaded, read the pixels from the
+				// loaded one
+				region = regionManager.getRegion(region.x, region.z, region.zoomLevel, region.dimension);
+				this.regionArray[i] = region;
 				this.updateTextureFromRegion(region, x, z, w, h);
 			}
 		}
@@ -26,6 +26,11 @@ import net.minecraft.world.biome.Biome;
 public class BlockColours
 {
 	public static final int MAX_META = 16;
+	// number of ids returned by Block.getStateId, 12 bits of block id and 4
+	// bits of meta
+	private static final int STATE_ID_COUNT = 1 << 16;
+	private static final int MAX_BLOCK_ID = 1 << 12;
+	private static final int BIOME_ID_COUNT = 256;
 
 	public static final String biomeSectionString = "[biomes]";
 	public static final String blockSectionString = "[blocks]";
@@ -34,6 +39,29 @@ public class BlockColours
 
 	private LinkedHashMap<String, BlockData> bcMap = new LinkedHashMap<String, BlockData>();
 
+	// colour and type ordinal of each block state indexed by
+	// Block.getStateId, compiled from bcMap the first time they are used
+	// after the colours or types change. chunk rendering looks up every
+	// block through these instead of building name strings.
+	private static final class StateTables
+	{
+		final int[] colours;
+		final byte[] types;
+
+		StateTables(int[] colours, byte[] types)
+		{
+			this.colours = colours;
+			this.types = types;
+		}
+	}
+
+	// the tables are cleared by the setters while the render threads use
+	// them, so readers copy the field to a local once and only use that
+	private volatile StateTables stateTables = null;
+	// colour multiplier of each biome id and block type ordinal, compiled
+	// from biomeMap the first time it is used after the biome data changes
+	private volatile int[][] biomeMultipliers = null;
+
 	public enum BlockType
 	{
 		NORMAL,
@@ -44,10 +72,101 @@ public class BlockColours
 		OPAQUE
 	}
 
+	private static final BlockType[] blockTypes = BlockType.values();
+
 	public BlockColours()
 	{
 	}
 
+	private StateTables compileStateTables()
+	{
+		int[] colours = new int[STATE_ID_COUNT];
+		byte[] types = new byte[STATE_ID_COUNT];
+		int count = 0;
+		for (Object oblock : Block.REGISTRY)
+		{
+			Block block = (Block) oblock;
+			int blockId = Block.getIdFromBlock(block);
+			if ((blockId < 0) || (blockId >= MAX_BLOCK_ID) || (block.delegate == null) || (block.delegate.name() == null))
+			{
+				continue;
+			}
+			String blockName = block.delegate.name().toString();
+			for (int meta = 0; meta < MAX_META; meta++)
+			{
+				int stateId = blockId | (meta << 12);
+				colours[stateId] = this.getColour(blockName, meta);
+				types[stateId] = (byte) this.getBlockType(blockName, meta).ordinal();
+			}
+			count++;
+		}
+		StateTables tables = new StateTables(colours, types);
+		this.stateTables = tables;
+		Logging.logInfo("compiled colours of %d blocks", count);
+		return tables;
+	}
+
+	private StateTables getStateTables()
+	{
+		StateTables tables = this.stateTables;
+		if (tables == null)
+		{
+			tables = this.compileStateTables();
+		}
+		return tables;
+	}
+
+	private int[][] compileBiomeMultipliers()
+	{
+		int[][] multipliers = new int[BIOME_ID_COUNT][blockTypes.length];
+		for (int biomeId = 0; biomeId < BIOME_ID_COUNT; biomeId++)
+		{
+			Biome biome = (biomeId == 255) ? Biomes.PLAINS : Biome.getBiomeForId(biomeId);
+			String biomeName = (biome != null) ? biome.getBiomeName() : "";
+			for (BlockType type : blockTypes)
+			{
+				int multiplier;
+				switch (type)
+				{
+				case GRASS:
+					multiplier = this.getGrassColourMultiplier(biomeName);
+					break;
+				case LEAVES:
+				case FOLIAGE:
+					multiplier = this.getFoliageColourMultiplier(biomeName);
+					break;
+				case WATER:
+					multiplier = this.getWaterColourMultiplier(biomeName);
+					break;
+				default:
+					multiplier = 0xffffff;
+					break;
+				}
+				multipliers[biomeId][type.ordinal()] = multiplier;
+			}
+		}
+		this.biomeMultipliers = multipliers;
+		return multipliers;
+	}
+
+	// called whenever a block colour or type changes
+	private void invalidateStateTables()
+	{
+		this.stateTables = null;
+	}
+
+	// colour of a block state id from Block.getStateId
+	public int getStateColour(int stateId)
+	{
+		return this.getStateTables().colours[stateId];
+	}
+
+	// type of a block state id from Block.getStateId
+	public BlockType getStateType(int stateId)
+	{
+		return blockTypes[this.getStateTables().types[stateId]];
+	}
+
 	public String CombineBlockMeta(String BlockName, int meta)
 	{
 		return BlockName + " " + meta;
@@ -76,31 +195,15 @@ public class BlockColours
 		return data.color;
 	}
 
+	// blocks without a registry name have colour 0
 	public int getColour(IBlockState BlockState)
 	{
-		Block block = BlockState.getBlock();
-		int meta = block.getMetaFromState(BlockState);
-
-		if (block.delegate == null)
-		{
-			Logging.logError(
-					"Delegate was Null when getting colour, Block in: %s",
-					block.toString());
-			return 0;
-		}
-		else if (block.delegate.name() == null)
-		{
-			Logging.logError(
-					"Block Name was Null when getting colour, Block in: %s, Delegate: %s",
-					block.toString(),
-					block.delegate.toString());
-			return 0;
-		}
-		return this.getColour(block.delegate.name().toString(), meta);
+		return this.getStateColour(Block.getStateId(BlockState));
 	}
 
 	public void setColour(String BlockName, String meta, int colour)
 	{
+		this.invalidateStateTables();
 		String BlockAndMeta = this.CombineBlockMeta(BlockName, meta);
 
 		if (meta.equals("*"))
@@ -174,28 +277,25 @@ public class BlockColours
 
 	public int getBiomeColour(IBlockState BlockState, int biomeId)
 	{
-		String biomeName = "";
-		Biome biome = Biome.getBiomeForId(biomeId);
-
-		if (biomeId == 255)
-		{
-			biome = Biomes.PLAINS;
-		}
+		return this.getStateBiomeColour(Block.getStateId(BlockState), biomeId);
+	}
 
-		if (biome != null)
+	// biome colour multiplier of a block state id from Block.getStateId
+	public int getStateBiomeColour(int stateId, int biomeId)
+	{
+		byte[] types = this.getStateTables().types;
+		int[][] multipliers = this.biomeMultipliers;
+		if (multipliers == null)
 		{
-			biomeName = biome.getBiomeName();
+			multipliers = this.compileBiomeMultipliers();
 		}
-
-		Block block = BlockState.getBlock();
-		int meta = block.getMetaFromState(BlockState);
-
-		return this.getBiomeColour(block.delegate.name().toString(), meta, biomeName);
+		return multipliers[biomeId & 0xff][types[stateId]];
 	}
 
 	public void setBiomeData(String biomeName, int waterShading, int grassShading,
 			int foliageShading)
 	{
+		this.biomeMultipliers = null;
 		BiomeData data = new BiomeData();
 		data.foliageMultiplier = foliageShading;
 		data.grassMultiplier = grassShading;
@@ -291,6 +391,7 @@ public class BlockColours
 
 	public void setBlockType(String BlockName, String meta, BlockType type)
 	{
+		this.invalidateStateTables();
 		String BlockAndMeta = this.CombineBlockMeta(BlockName, meta);
 
 		if (meta.equals("*"))
@@ -0,0 +1,229 @@
+package mapwriter.region;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Per thread Inflater, Deflater and scratch buffers used when reading and
+ * writing chunks in region files, so that reading or writing a chunk does not
+ * allocate new compression state and byte arrays each time.
+ *
+ * A thread can only use one input and one output stream at a time. The
+ * stream returned by getDecompressedStream is only valid until the next call
+ * to getDecompressedStream from the same thread.
+ *
+ * Compressed chunk data can be read from a view of a mapped region file, in
+ * which case it is decompressed from the mapping without first being copied
+ * into a heap array.
+ *
+ * Chunks are written by encoding the NBT into uncompressedBuffer and then
+ * calling compress, which leaves the compression version byte followed by
+ * the compressed data in outputBuffer.
+ */
+public class ChunkBuffers
+{
+	private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+	private static final ThreadLocal<ChunkBuffers> buffers = new ThreadLocal<ChunkBuffers>()
+	{
+		@Override
+		protected ChunkBuffers initialValue()
+		{
+			return new ChunkBuffers();
+		}
+	};
+
+	public final Inflater inflater = new Inflater();
+	public final Deflater deflater = new Deflater();
+
+	private byte[] compressedBuffer = new byte[INITIAL_BUFFER_SIZE];
+	private byte[] inflatedBuffer = new byte[INITIAL_BUFFER_SIZE];
+	private final byte[] deflateBuffer = new byte[8192];
+	private final byte[] inflateInput = new byte[8192];
+	private final int[] lzHashTable = new int[1 << LzCodec.HASH_BITS];
+
+	// byte array output stream that exposes its buffer so it can be written
+	// to the region file without copying.
+	public static class ScratchOutputStream extends ByteArrayOutputStream
+	{
+		public ScratchOutputStream()
+		{
+			super(INITIAL_BUFFER_SIZE);
+		}
+
+		public byte[] getBuffer()
+		{
+			return this.buf;
+		}
+	}
+
+	public final ScratchOutputStream uncompressedBuffer = new ScratchOutputStream();
+	public final ScratchOutputStream outputBuffer = new ScratchOutputStream();
+
+	public static ChunkBuffers get()
+	{
+		return buffers.get();
+	}
+
+	// returns a buffer at least 'size' bytes long to read compressed chunk
+	// data into.
+	public byte[] getCompressedBuffer(int size)
+	{
+		if (this.compressedBuffer.length < size)
+		{
+			this.compressedBuffer = new byte[Math.max(size, this.compressedBuffer.length * 2)];
+		}
+		return this.compressedBuffer;
+	}
+
+	private byte[] getInflatedBuffer(int size)
+	{
+		if (this.inflatedBuffer.length < size)
+		{
+			this.inflatedBuffer = new byte[Math.max(size, this.inflatedBuffer.length * 2)];
+		}
+		return this.inflatedBuffer;
+	}
+
+	// inflate the zlib compressed data between the position and limit of
+	// 'data' into the inflated scratch buffer and return the inflated
+	// length.
+	private int inflate(ByteBuffer data) throws DataFormatException
+	{
+		Inflater inflater = this.inflater;
+		inflater.reset();
+		if (data.hasArray())
+		{
+			inflater.setInput(data.array(), data.arrayOffset() + data.position(), data.remaining());
+			data.position(data.limit());
+		}
+		int count = 0;
+		while (!inflater.finished())
+		{
+			if (inflater.needsInput() && data.hasRemaining())
+			{
+				// the Inflater only takes its input from an array, so data in
+				// a mapped file is passed to it a block at a time
+				int n = Math.min(data.remaining(), this.inflateInput.length);
+				data.get(this.inflateInput, 0, n);
+				inflater.setInput(this.inflateInput, 0, n);
+			}
+			if (count == this.inflatedBuffer.length)
+			{
+				byte[] newBuffer = new byte[this.inflatedBuffer.length * 2];
+				System.arraycopy(this.inflatedBuffer, 0, newBuffer, 0, count);
+				this.inflatedBuffer = newBuffer;
+			}
+			int n = inflater.inflate(this.inflatedBuffer, count, this.inflatedBuffer.length - count);
+			if ((n == 0) && ((inflater.needsInput() && !data.hasRemaining()) || inflater.needsDictionary()))
+			{
+				throw new DataFormatException("truncated chunk data");
+			}
+			count += n;
+		}
+		return count;
+	}
+
+	// decompress chunk data stored with the given compression version and
+	// return a stream over the result.
+	public DataInputStream getDecompressedStream(int version, byte[] data, int offset, int length) throws DataFormatException
+	{
+		return this.getDecompressedStream(version, ByteBuffer.wrap(data, offset, length));
+	}
+
+	// decompress the chunk data between the position and limit of 'data',
+	// which may be a view of a mapped region file. the position of 'data' is
+	// changed. if 'data' is not backed by an array the returned stream does
+	// not read from it, so it stays valid if the file is written to
+	// afterwards.
+	public DataInputStream getDecompressedStream(int version, ByteBuffer data) throws DataFormatException
+	{
+		ChunkCompression compression = ChunkCompression.fromVersion(version);
+		if (compression == null)
+		{
+			throw new DataFormatException(String.format("unknown compression version %d", version));
+		}
+		switch (compression)
+		{
+			case DEFLATE:
+				int count = this.inflate(data);
+				return new DataInputStream(new ByteArrayInputStream(this.inflatedBuffer, 0, count));
+
+			case LZ:
+				// uncompressed length followed by the compressed block
+				if (data.remaining() < 4)
+				{
+					throw new DataFormatException("truncated chunk data");
+				}
+				int uncompressedLength = data.getInt();
+				if ((uncompressedLength < 0) || (uncompressedLength > (1 << 24)))
+				{
+					throw new DataFormatException(String.format("invalid uncompressed length %d", uncompressedLength));
+				}
+				byte[] buffer = this.getInflatedBuffer(uncompressedLength);
+				LzCodec.decompress(data, buffer, uncompressedLength);
+				return new DataInputStream(new ByteArrayInputStream(buffer, 0, uncompressedLength));
+
+			default:
+				int length = data.remaining();
+				if (data.hasArray())
+				{
+					return new DataInputStream(new ByteArrayInputStream(data.array(), data.arrayOffset() + data.position(), length));
+				}
+				// the stream is read after the region file is unlocked, so
+				// uncompressed data in a mapped file is copied
+				byte[] copy = this.getInflatedBuffer(length);
+				data.get(copy, 0, length);
+				return new DataInputStream(new ByteArrayInputStream(copy, 0, length));
+		}
+	}
+
+	// compress the contents of uncompressedBuffer using the configured
+	// compression. outputBuffer is left holding the compression version byte
+	// followed by the compressed data, as stored after the length in a
+	// region file. 'backlog' is the number of chunks waiting to be saved,
+	// used to pick the deflate level.
+	public void compress(int backlog)
+	{
+		ChunkCompression compression = ChunkCompression.getConfigured();
+		byte[] src = this.uncompressedBuffer.getBuffer();
+		int srcLength = this.uncompressedBuffer.size();
+		ScratchOutputStream out = this.outputBuffer;
+		out.reset();
+		out.write(compression.version);
+		switch (compression)
+		{
+			case DEFLATE:
+				Deflater deflater = this.deflater;
+				deflater.reset();
+				deflater.setLevel(ChunkCompression.getDeflateLevel(backlog));
+				deflater.setInput(src, 0, srcLength);
+				deflater.finish();
+				while (!deflater.finished())
+				{
+					int n = deflater.deflate(this.deflateBuffer);
+					out.write(this.deflateBuffer, 0, n);
+				}
+				break;
+
+			case LZ:
+				byte[] dst = this.getCompressedBuffer(LzCodec.getMaxCompressedLength(srcLength) + 4);
+				dst[0] = (byte) (srcLength >> 24);
+				dst[1] = (byte) (srcLength >> 16);
+				dst[2] = (byte) (srcLength >> 8);
+				dst[3] = (byte) srcLength;
+				int n = LzCodec.compress(src, srcLength, dst, 4, this.lzHashTable);
+				out.write(dst, 0, n + 4);
+				break;
+
+			default:
+				out.write(src, 0, srcLength);
+				break;
+		}
+	}
+}
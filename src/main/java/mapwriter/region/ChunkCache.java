@@ -0,0 +1,125 @@
+package mapwriter.region;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import mapwriter.config.Config;
+
+/*
+ * Cache of chunks read from region files by MwChunk.read, so that rebuilding
+ * the same regions again (for example after reloading the block colours)
+ * does not read and decode every chunk again.
+ *
+ * The cache is limited by the estimated memory used by the cached chunks,
+ * set by Config.chunkCacheSizeMB (0 disables it). Chunks are removed when
+ * they are saved. As a chunk being saved may be read at the same time, a
+ * chunk read before the latest invalidation is not added to the cache.
+ */
+public class ChunkCache
+{
+	// estimated size of a decoded section: the block state storage and the
+	// block and sky light arrays.
+	private static final int SECTION_SIZE = 8 * 1024;
+	private static final int CHUNK_SIZE = 512;
+
+	// Least Recently Used (LRU) map of cached chunks
+	private final LinkedHashMap<Long, MwChunk> chunkMap = new LinkedHashMap<Long, MwChunk>(256, 0.75f, true);
+	private long size = 0;
+	private int generation = 0;
+
+	private long hitCount = 0;
+	private long missCount = 0;
+
+	private static long getSize(MwChunk chunk)
+	{
+		int sections = 0;
+		for (int i = 0; i < chunk.dataArray.length; i++)
+		{
+			if (chunk.dataArray[i] != null)
+			{
+				sections++;
+			}
+		}
+		return CHUNK_SIZE + ((long) sections * SECTION_SIZE) + ((chunk.biomeArray != null) ? chunk.biomeArray.length : 0);
+	}
+
+	private static long getMaxSize()
+	{
+		return Config.chunkCacheSizeMB * 1024L * 1024L;
+	}
+
+	public synchronized MwChunk get(int x, int z, int dimension)
+	{
+		MwChunk chunk = this.chunkMap.get(MwChunk.getKey(x, z, dimension));
+		if (chunk != null)
+		{
+			this.hitCount++;
+		}
+		else
+		{
+			this.missCount++;
+		}
+		return chunk;
+	}
+
+	// returns a value to pass to put, taken before reading the chunk from the
+	// region file.
+	public synchronized int getGeneration()
+	{
+		return this.generation;
+	}
+
+	// add a chunk read from a region file. 'generation' is the value of
+	// getGeneration from before the chunk was read.
+	public synchronized void put(MwChunk chunk, int generation)
+	{
+		long maxSize = getMaxSize();
+		if ((maxSize <= 0) || (generation != this.generation))
+		{
+			return;
+		}
+		MwChunk oldChunk = this.chunkMap.put(MwChunk.getKey(chunk.x, chunk.z, chunk.dimension), chunk);
+		if (oldChunk != null)
+		{
+			this.size -= getSize(oldChunk);
+		}
+		this.size += getSize(chunk);
+
+		// remove least recently used chunks until within the limit
+		Iterator<MwChunk> it = this.chunkMap.values().iterator();
+		while ((this.size > maxSize) && it.hasNext())
+		{
+			this.size -= getSize(it.next());
+			it.remove();
+		}
+	}
+
+	// remove a chunk that has been changed
+	public synchronized void invalidate(int x, int z, int dimension)
+	{
+		this.generation++;
+		MwChunk chunk = this.chunkMap.remove(MwChunk.getKey(x, z, dimension));
+		if (chunk != null)
+		{
+			this.size -= getSize(chunk);
+		}
+	}
+
+	public synchronized void clear()
+	{
+		this.generation++;
+		this.chunkMap.clear();
+		this.size = 0;
+	}
+
+	public synchronized double getHitRate()
+	{
+		long total = this.hitCount + this.missCount;
+		return (total > 0) ? ((double) this.hitCount / total) : 0.0;
+	}
+
+	public synchronized String getStats()
+	{
+		return String.format("%d chunks, %d KB, %d hits, %d misses (%.1f%% hit rate)", this.chunkMap.size(), this.size / 1024, this.hitCount, this.missCount, this.getHitRate() * 100.0);
+	}
+}
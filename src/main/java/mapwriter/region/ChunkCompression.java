@@ -0,0 +1,90 @@
+package mapwriter.region;
+
+import java.util.zip.Deflater;
+
+import mapwriter.config.Config;
+
+/*
+ * Compression used for the chunk data stored in mapwriter's region files.
+ * The version is the byte stored before the chunk data in the region file.
+ * Version 2 is the zlib compression used by Minecraft, the others can only be
+ * read by mapwriter.
+ *
+ * Minecraft uses versions 1 to 4 and 127, and sets bit 0x80 for chunks stored
+ * in a separate file, so mapwriter's own versions are taken from the unused
+ * range below 127 where a file read by another program fails cleanly instead
+ * of being decoded with the wrong format.
+ */
+public enum ChunkCompression
+{
+	DEFLATE(2, "mw.config.regionFileCompression.deflate"),
+	NONE(120, "mw.config.regionFileCompression.none"),
+	LZ(121, "mw.config.regionFileCompression.lz");
+
+	// uncompressed chunks were stored with version 3 before NONE was given a
+	// private version. Minecraft also stores uncompressed chunks as version
+	// 3, so it is still read.
+	private static final int UNCOMPRESSED_VERSION = 3;
+
+	// the deflate level is lowered when this many chunks are waiting to be
+	// written
+	private static final int ADAPTIVE_BACKLOG_LOW = 64;
+	private static final int ADAPTIVE_BACKLOG_HIGH = 256;
+
+	public final int version;
+	public final String configName;
+
+	ChunkCompression(int version, String configName)
+	{
+		this.version = version;
+		this.configName = configName;
+	}
+
+	public static ChunkCompression fromVersion(int version)
+	{
+		if (version == UNCOMPRESSED_VERSION)
+		{
+			return NONE;
+		}
+		for (ChunkCompression compression : values())
+		{
+			if (compression.version == version)
+			{
+				return compression;
+			}
+		}
+		return null;
+	}
+
+	public static ChunkCompression getConfigured()
+	{
+		for (ChunkCompression compression : values())
+		{
+			if (compression.configName.equals(Config.regionFileCompression))
+			{
+				return compression;
+			}
+		}
+		return DEFLATE;
+	}
+
+	// get the deflate level to use given the number of chunks waiting to be
+	// saved. with adaptive compression enabled faster levels are used when
+	// saving falls behind.
+	public static int getDeflateLevel(int backlog)
+	{
+		int level = Config.regionFileCompressionLevel;
+		if (Config.regionFileAdaptiveCompression)
+		{
+			if (backlog >= ADAPTIVE_BACKLOG_HIGH)
+			{
+				level = Deflater.BEST_SPEED;
+			}
+			else if (backlog >= ADAPTIVE_BACKLOG_LOW)
+			{
+				level = Math.min(level, 3);
+			}
+		}
+		return level;
+	}
+}
@@ -0,0 +1,142 @@
+package mapwriter.region;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import mapwriter.util.Logging;
+
+/*
+ * Fingerprints of the block and biome data of the chunks in a region file,
+ * used to skip saving chunks that have not changed since they were last
+ * written. A fingerprint of 0 means unknown.
+ *
+ * Stored next to the region file as a magic number, the checksum of the
+ * region file header the fingerprints belong to, and 1024 longs. If the
+ * header in the region file does not match (the region file was written
+ * without the fingerprints being saved) all fingerprints are discarded, so
+ * a stale fingerprint can never cause a changed chunk to be skipped.
+ */
+public class ChunkFingerprints
+{
+	private static final int MAGIC = 0x4d574631;
+
+	private final File file;
+	private long[] fingerprints = new long[1024];
+	private boolean modified = false;
+
+	public ChunkFingerprints(File file)
+	{
+		this.file = file;
+	}
+
+	public void load(int headerChecksum)
+	{
+		Arrays.fill(this.fingerprints, 0L);
+		this.modified = false;
+		if (this.file.length() != (8 + (1024 * 8)))
+		{
+			return;
+		}
+		DataInputStream dis = null;
+		try
+		{
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+			if ((dis.readInt() == MAGIC) && (dis.readInt() == headerChecksum))
+			{
+				for (int i = 0; i < 1024; i++)
+				{
+					this.fingerprints[i] = dis.readLong();
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			Logging.logError("could not read chunk fingerprints %s: %s", this.file, e);
+			Arrays.fill(this.fingerprints, 0L);
+		}
+		finally
+		{
+			if (dis != null)
+			{
+				try
+				{
+					dis.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}
+	}
+
+	// save the fingerprints if they have changed. 'headerChecksum' is the
+	// checksum of the header just written to the region file.
+	public void save(int headerChecksum)
+	{
+		if (!this.modified)
+		{
+			return;
+		}
+		DataOutputStream dos = null;
+		try
+		{
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.file)));
+			dos.writeInt(MAGIC);
+			dos.writeInt(headerChecksum);
+			for (int i = 0; i < 1024; i++)
+			{
+				dos.writeLong(this.fingerprints[i]);
+			}
+			this.modified = false;
+		}
+		catch (IOException e)
+		{
+			Logging.logError("could not write chunk fingerprints %s: %s", this.file, e);
+		}
+		finally
+		{
+			if (dos != null)
+			{
+				try
+				{
+					dos.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}
+	}
+
+	public long get(int index)
+	{
+		return this.fingerprints[index];
+	}
+
+	public void set(int index, long fingerprint)
+	{
+		if (this.fingerprints[index] != fingerprint)
+		{
+			this.fingerprints[index] = fingerprint;
+			this.modified = true;
+		}
+	}
+
+	public long[] copy()
+	{
+		return Arrays.copyOf(this.fingerprints, this.fingerprints.length);
+	}
+
+	public void restore(long[] fingerprints)
+	{
+		this.fingerprints = Arrays.copyOf(fingerprints, 1024);
+		this.modified = true;
+	}
+}
@@ -0,0 +1,293 @@
+package mapwriter.region;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import mapwriter.util.Logging;
+import net.minecraft.world.chunk.NibbleArray;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+
+/*
+ * Reads the parts of an Anvil chunk NBT stream needed to render the map,
+ * without building the NBT tree. Only the chunk coordinates, the "Biomes"
+ * array and the block arrays of the "Sections" list are kept. Everything
+ * else (light arrays, height map, entities, tile entities, tile ticks) is
+ * skipped in the stream.
+ *
+ * chunk NBT structure:
+ *
+ * COMPOUND ""
+ *   COMPOUND "Level"
+ *     INT "xPos"
+ *     INT "zPos"
+ *     BYTE_ARRAY "Biomes"
+ *     LIST(COMPOUND) "Sections"
+ *       BYTE "Y"
+ *       BYTE_ARRAY "Blocks"
+ *       BYTE_ARRAY "Add"
+ *       BYTE_ARRAY "Data"
+ *       ...
+ *     ...
+ */
+public class ChunkNbtReader
+{
+	private static final int TAG_END = 0;
+	private static final int TAG_BYTE = 1;
+	private static final int TAG_SHORT = 2;
+	private static final int TAG_INT = 3;
+	private static final int TAG_LONG = 4;
+	private static final int TAG_FLOAT = 5;
+	private static final int TAG_DOUBLE = 6;
+	private static final int TAG_BYTE_ARRAY = 7;
+	private static final int TAG_STRING = 8;
+	private static final int TAG_LIST = 9;
+	private static final int TAG_COMPOUND = 10;
+	private static final int TAG_INT_ARRAY = 11;
+	private static final int TAG_LONG_ARRAY = 12;
+
+	// same limit as NBTSizeTracker uses for nested tags
+	private static final int MAX_DEPTH = 512;
+
+	private final DataInputStream dis;
+
+	public int xPos = 0;
+	public int zPos = 0;
+	public byte[] biomeArray = null;
+	public final ExtendedBlockStorage[] data = new ExtendedBlockStorage[16];
+
+	public ChunkNbtReader(DataInputStream dis)
+	{
+		this.dis = dis;
+	}
+
+	// read the chunk from the stream. the results are left in the public
+	// fields.
+	public void read() throws IOException
+	{
+		int type = this.dis.readUnsignedByte();
+		if (type != TAG_COMPOUND)
+		{
+			throw new IOException(String.format("chunk root tag has type %d, expected compound", type));
+		}
+		this.skipString();
+		while ((type = this.dis.readUnsignedByte()) != TAG_END)
+		{
+			String name = this.dis.readUTF();
+			if ((type == TAG_COMPOUND) && name.equals("Level"))
+			{
+				this.readLevel();
+			}
+			else
+			{
+				this.skipPayload(type, 0);
+			}
+		}
+	}
+
+	private void readLevel() throws IOException
+	{
+		int type;
+		while ((type = this.dis.readUnsignedByte()) != TAG_END)
+		{
+			String name = this.dis.readUTF();
+			if ((type == TAG_INT) && name.equals("xPos"))
+			{
+				this.xPos = this.dis.readInt();
+			}
+			else if ((type == TAG_INT) && name.equals("zPos"))
+			{
+				this.zPos = this.dis.readInt();
+			}
+			else if ((type == TAG_BYTE_ARRAY) && name.equals("Biomes"))
+			{
+				this.biomeArray = this.readByteArray(256);
+			}
+			else if ((type == TAG_LIST) && name.equals("Sections"))
+			{
+				this.readSections();
+			}
+			else
+			{
+				this.skipPayload(type, 1);
+			}
+		}
+	}
+
+	private void readSections() throws IOException
+	{
+		int elementType = this.dis.readUnsignedByte();
+		int count = this.dis.readInt();
+		if (elementType != TAG_COMPOUND)
+		{
+			this.skipListElements(elementType, count, 2);
+			return;
+		}
+		for (int i = 0; i < count; i++)
+		{
+			this.readSection();
+		}
+	}
+
+	private void readSection() throws IOException
+	{
+		int y = -1;
+		byte[] blocks = null;
+		byte[] add = null;
+		byte[] meta = null;
+
+		int type;
+		while ((type = this.dis.readUnsignedByte()) != TAG_END)
+		{
+			String name = this.dis.readUTF();
+			if ((type == TAG_BYTE) && name.equals("Y"))
+			{
+				y = this.dis.readByte();
+			}
+			else if ((type == TAG_BYTE_ARRAY) && name.equals("Blocks"))
+			{
+				blocks = this.readByteArray(4096);
+			}
+			else if ((type == TAG_BYTE_ARRAY) && name.equals("Data"))
+			{
+				meta = this.readByteArray(2048);
+			}
+			else if ((type == TAG_BYTE_ARRAY) && name.equals("Add"))
+			{
+				add = this.readByteArray(2048);
+			}
+			else
+			{
+				this.skipPayload(type, 3);
+			}
+		}
+
+		if ((y < 0) || (y >= 16) || (blocks == null) || (blocks.length != 4096) || (meta == null) || (meta.length != 2048) || ((add != null) && (add.length != 2048)))
+		{
+			Logging.logWarning("skipping invalid chunk section %d", y);
+			return;
+		}
+
+		ExtendedBlockStorage storage = new ExtendedBlockStorage(y << 4, true);
+		storage.getData().setDataFromNBT(blocks, new NibbleArray(meta), (add != null) ? new NibbleArray(add) : null);
+		storage.removeInvalidBlocks();
+		this.data[y] = storage;
+	}
+
+	// read a byte array that can hold at most maxLength bytes, so corrupt
+	// chunk data can not make the reader allocate a huge array
+	private byte[] readByteArray(int maxLength) throws IOException
+	{
+		int length = this.dis.readInt();
+		if ((length < 0) || (length > maxLength))
+		{
+			throw new IOException(String.format("invalid byte array length %d, expected at most %d", length, maxLength));
+		}
+		byte[] array = new byte[length];
+		this.dis.readFully(array);
+		return array;
+	}
+
+	private void skipBytes(long n) throws IOException
+	{
+		if (n < 0)
+		{
+			throw new IOException(String.format("negative tag length %d", n));
+		}
+		while (n > 0)
+		{
+			int skipped = this.dis.skipBytes((int) Math.min(n, Integer.MAX_VALUE));
+			if (skipped <= 0)
+			{
+				throw new IOException("unexpected end of chunk data");
+			}
+			n -= skipped;
+		}
+	}
+
+	private void skipString() throws IOException
+	{
+		this.skipBytes(this.dis.readUnsignedShort());
+	}
+
+	private void skipListElements(int elementType, int count, int depth) throws IOException
+	{
+		for (int i = 0; i < count; i++)
+		{
+			this.skipPayload(elementType, depth);
+		}
+	}
+
+	private void skipPayload(int type, int depth) throws IOException
+	{
+		if (depth > MAX_DEPTH)
+		{
+			throw new IOException("chunk NBT nested too deeply");
+		}
+		switch (type)
+		{
+			case TAG_BYTE:
+				this.skipBytes(1);
+				break;
+			case TAG_SHORT:
+				this.skipBytes(2);
+				break;
+			case TAG_INT:
+			case TAG_FLOAT:
+				this.skipBytes(4);
+				break;
+			case TAG_LONG:
+			case TAG_DOUBLE:
+				this.skipBytes(8);
+				break;
+			case TAG_BYTE_ARRAY:
+				this.skipBytes(this.dis.readInt());
+				break;
+			case TAG_STRING:
+				this.skipString();
+				break;
+			case TAG_LIST:
+				int elementType = this.dis.readUnsignedByte();
+				int count = this.dis.readInt();
+				// fixed size elements can be skipped in one go
+				switch (elementType)
+				{
+					case TAG_END:
+						break;
+					case TAG_BYTE:
+						this.skipBytes(count);
+						break;
+					case TAG_SHORT:
+						this.skipBytes(count * 2L);
+						break;
+					case TAG_INT:
+					case TAG_FLOAT:
+						this.skipBytes(count * 4L);
+						break;
+					case TAG_LONG:
+					case TAG_DOUBLE:
+						this.skipBytes(count * 8L);
+						break;
+					default:
+						this.skipListElements(elementType, count, depth + 1);
+						break;
+				}
+				break;
+			case TAG_COMPOUND:
+				int childType;
+				while ((childType = this.dis.readUnsignedByte()) != TAG_END)
+				{
+					this.skipString();
+					this.skipPayload(childType, depth + 1);
+				}
+				break;
+			case TAG_INT_ARRAY:
+				this.skipBytes(this.dis.readInt() * 4L);
+				break;
+			case TAG_LONG_ARRAY:
+				this.skipBytes(this.dis.readInt() * 8L);
+				break;
+			default:
+				throw new IOException(String.format("unknown NBT tag type %d", type));
+		}
+	}
+}
@@ -0,0 +1,268 @@
+package mapwriter.region;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.NibbleArray;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+
+/*
+ * Writes the Anvil chunk NBT of an MwChunk straight to a stream from its
+ * ExtendedBlockStorage arrays, without building an NBTTagCompound tree.
+ * The output is byte for byte the same as CompressedStreamTools.write of
+ * the tree built by the old MwChunk.writeChunkToNBT.
+ *
+ * NBTTagCompound writes its tags in the iteration order of its HashMap, so
+ * the tag order of each compound is taken from a HashMap filled with the
+ * same keys in the same order.
+ *
+ * The block and data arrays are converted into per thread scratch arrays,
+ * and the light arrays are written directly from the storage.
+ */
+public class ChunkNbtWriter
+{
+	private static final int TAG_END = 0;
+	private static final int TAG_BYTE = 1;
+	private static final int TAG_INT = 3;
+	private static final int TAG_BYTE_ARRAY = 7;
+	private static final int TAG_LIST = 9;
+	private static final int TAG_COMPOUND = 10;
+
+	private static final String[] LEVEL_TAGS = getTagOrder("xPos", "zPos", "Sections", "Biomes", "TileEntities");
+	private static final String[] SECTION_TAGS = getTagOrder("Y", "Blocks", "Data", "BlockLight", "SkyLight");
+	private static final String[] SECTION_TAGS_ADD = getTagOrder("Y", "Blocks", "Data", "Add", "BlockLight", "SkyLight");
+
+	private static final ThreadLocal<ChunkNbtWriter> writers = new ThreadLocal<ChunkNbtWriter>()
+	{
+		@Override
+		protected ChunkNbtWriter initialValue()
+		{
+			return new ChunkNbtWriter();
+		}
+	};
+
+	private final byte[] blocks = new byte[4096];
+	private final NibbleArray meta = new NibbleArray(new byte[2048]);
+	private final byte[] emptyLight = new byte[2048];
+	private final ChunkBuffers.ScratchOutputStream tileEntityBuffer = new ChunkBuffers.ScratchOutputStream();
+
+	public static ChunkNbtWriter get()
+	{
+		return writers.get();
+	}
+
+	private static String[] getTagOrder(String... names)
+	{
+		Map<String, Boolean> map = new HashMap<String, Boolean>();
+		for (String name : names)
+		{
+			map.put(name, Boolean.TRUE);
+		}
+		return map.keySet().toArray(new String[map.size()]);
+	}
+
+	private static void writeTagHeader(DataOutputStream dos, int type, String name) throws IOException
+	{
+		dos.writeByte(type);
+		dos.writeUTF(name);
+	}
+
+	private static void writeByteArray(DataOutputStream dos, String name, byte[] array) throws IOException
+	{
+		writeTagHeader(dos, TAG_BYTE_ARRAY, name);
+		dos.writeInt(array.length);
+		dos.write(array);
+	}
+
+	public void write(MwChunk chunk, DataOutputStream dos) throws IOException
+	{
+		// root compound with no name containing the "Level" compound
+		writeTagHeader(dos, TAG_COMPOUND, "");
+		writeTagHeader(dos, TAG_COMPOUND, "Level");
+		for (String tag : LEVEL_TAGS)
+		{
+			if (tag.equals("xPos"))
+			{
+				writeTagHeader(dos, TAG_INT, tag);
+				dos.writeInt(chunk.x);
+			}
+			else if (tag.equals("zPos"))
+			{
+				writeTagHeader(dos, TAG_INT, tag);
+				dos.writeInt(chunk.z);
+			}
+			else if (tag.equals("Sections"))
+			{
+				this.writeSections(dos, chunk.dataArray);
+			}
+			else if (tag.equals("Biomes"))
+			{
+				writeByteArray(dos, tag, (chunk.biomeArray != null) ? chunk.biomeArray : new byte[0]);
+			}
+			else if (tag.equals("TileEntities"))
+			{
+				this.writeTileEntities(dos, chunk.tileentityMap);
+			}
+		}
+		dos.writeByte(TAG_END);
+		dos.writeByte(TAG_END);
+	}
+
+	private static long hash(long h, byte[] array)
+	{
+		// 64 bit FNV-1a
+		for (byte b : array)
+		{
+			h = (h ^ (b & 0xff)) * 0x100000001b3L;
+		}
+		return h;
+	}
+
+	// fingerprint of the block and biome data that write would store for
+	// the chunk. light and tile entities are not included as they do not
+	// change the map. never returns 0, which ChunkFingerprints uses for
+	// unknown.
+	public long getFingerprint(MwChunk chunk)
+	{
+		long h = 0xcbf29ce484222325L;
+		for (ExtendedBlockStorage storage : chunk.dataArray)
+		{
+			if (storage != Chunk.NULL_BLOCK_STORAGE)
+			{
+				NibbleArray add = storage.getData().getDataForNBT(this.blocks, this.meta);
+				h = (h ^ ((storage.getYLocation() >> 4) & 255)) * 0x100000001b3L;
+				h = hash(h, this.blocks);
+				h = hash(h, this.meta.getData());
+				if (add != null)
+				{
+					h = hash(h, add.getData());
+				}
+			}
+			else
+			{
+				h = (h ^ 0xff) * 0x100000001b3L;
+			}
+		}
+		if (chunk.biomeArray != null)
+		{
+			h = hash(h, chunk.biomeArray);
+		}
+		return (h != 0L) ? h : 1L;
+	}
+
+	private void writeSections(DataOutputStream dos, ExtendedBlockStorage[] dataArray) throws IOException
+	{
+		int count = 0;
+		for (ExtendedBlockStorage storage : dataArray)
+		{
+			if (storage != Chunk.NULL_BLOCK_STORAGE)
+			{
+				count++;
+			}
+		}
+		writeTagHeader(dos, TAG_LIST, "Sections");
+		// an empty list is written with element type end
+		dos.writeByte((count > 0) ? TAG_COMPOUND : TAG_END);
+		dos.writeInt(count);
+		for (ExtendedBlockStorage storage : dataArray)
+		{
+			if (storage != Chunk.NULL_BLOCK_STORAGE)
+			{
+				this.writeSection(dos, storage);
+			}
+		}
+	}
+
+	private void writeSection(DataOutputStream dos, ExtendedBlockStorage storage) throws IOException
+	{
+		// getDataForNBT sets every entry of the block and data arrays, and
+		// only allocates the add array if the section needs it
+		NibbleArray add = storage.getData().getDataForNBT(this.blocks, this.meta);
+		byte[] blockLight = storage.getBlocklightArray().getData();
+		byte[] skyLight = null;
+		if ((storage.getSkylightArray() != null) && (storage.getSkylightArray().getData() != null))
+		{
+			skyLight = storage.getSkylightArray().getData();
+		}
+		else
+		{
+			skyLight = (blockLight.length == this.emptyLight.length) ? this.emptyLight : new byte[blockLight.length];
+		}
+
+		for (String tag : (add != null) ? SECTION_TAGS_ADD : SECTION_TAGS)
+		{
+			if (tag.equals("Y"))
+			{
+				writeTagHeader(dos, TAG_BYTE, tag);
+				dos.writeByte((storage.getYLocation() >> 4) & 255);
+			}
+			else if (tag.equals("Blocks"))
+			{
+				writeByteArray(dos, tag, this.blocks);
+			}
+			else if (tag.equals("Data"))
+			{
+				writeByteArray(dos, tag, this.meta.getData());
+			}
+			else if (tag.equals("Add"))
+			{
+				writeByteArray(dos, tag, add.getData());
+			}
+			else if (tag.equals("BlockLight"))
+			{
+				writeByteArray(dos, tag, blockLight);
+			}
+			else if (tag.equals("SkyLight"))
+			{
+				writeByteArray(dos, tag, skyLight);
+			}
+		}
+		dos.writeByte(TAG_END);
+	}
+
+	private void writeTileEntities(DataOutputStream dos, Map<BlockPos, TileEntity> tileEntityMap) throws IOException
+	{
+		// tile entities still go through NBTTagCompound. each is written
+		// as a root tag with an empty name, which is stripped to leave the
+		// compound payload for the list.
+		ChunkBuffers.ScratchOutputStream buffer = this.tileEntityBuffer;
+		buffer.reset();
+		DataOutputStream tileEntityDos = new DataOutputStream(buffer);
+		int[] ends = new int[tileEntityMap.size()];
+		int count = 0;
+		for (TileEntity tileentity : tileEntityMap.values())
+		{
+			NBTTagCompound compound;
+			try
+			{
+				compound = tileentity.writeToNBT(new NBTTagCompound());
+			}
+			catch (Exception e)
+			{
+				// we eat this exception becous we are doing something we
+				// shouldnt do on client side.
+				continue;
+			}
+			CompressedStreamTools.write(compound, tileEntityDos);
+			ends[count++] = buffer.size();
+		}
+
+		writeTagHeader(dos, TAG_LIST, "TileEntities");
+		dos.writeByte((count > 0) ? TAG_COMPOUND : TAG_END);
+		dos.writeInt(count);
+		int start = 0;
+		for (int i = 0; i < count; i++)
+		{
+			// skip the tag type byte and the empty name
+			dos.write(buffer.getBuffer(), start + 3, ends[i] - start - 3);
+			start = ends[i];
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package mapwriter.region;
 
 import mapwriter.config.Config;
+import net.minecraft.block.Block;
 import net.minecraft.block.state.IBlockState;
 
 public class ChunkRender
@@ -17,8 +18,8 @@ public class ChunkRender
 	public static final double darkenAmplitude = 1.4;
 
 	// get the height shading of a pixel.
-	// requires the pixel to the west and the pixel to the north to have their
-	// heights stored in the alpha channel to work.
+	// requires the heights of the pixel to the west and the pixel to the
+	// north to work.
 	// the "height" of a pixel is the y value of the first opaque block in
 	// the block column that created the pixel.
 	// height values of 0 and 255 are ignored as these are used as the clear
@@ -85,6 +86,9 @@ public class ChunkRender
 	// note that the "front to back" alpha blending algorithm is used
 	// rather than the more common "back to front".
 	//
+	// the height of the surface is returned in the alpha byte of the colour,
+	// renderSurface splits it into the separate height array.
+	//
 	public static int getColumnColour(BlockColours bc, IChunk chunk, int x, int y, int z,
 			int heightW, int heightN)
 	{
@@ -94,8 +98,8 @@ public class ChunkRender
 		double b = 0.0;
 		for (; y > 0; y--)
 		{
-			IBlockState blockState = chunk.getBlockState(x, y, z);
-			int c1 = bc.getColour(blockState);
+			int stateId = Block.getStateId(chunk.getBlockState(x, y, z));
+			int c1 = bc.getStateColour(stateId);
 			int alpha = (c1 >> 24) & 0xff;
 
 			// this is the color that gets returned for air, so set aplha to 0
@@ -110,7 +114,7 @@ public class ChunkRender
 			{
 
 				int biome = chunk.getBiome(x, y, z);
-				int c2 = bc.getBiomeColour(blockState, biome);
+				int c2 = bc.getStateBiomeColour(stateId, biome);
 
 				// extract colour components as normalized doubles
 				double c1A = (alpha) / 255.0;
@@ -160,17 +164,20 @@ public class ChunkRender
 				& 0xff) << 8) | ((((int) (b * 255.0)) & 0xff));
 	}
 
-	static int getPixelHeightN(int[] pixels, int offset, int scanSize)
+	static int getPixelHeightN(byte[] heights, int offset, int scanSize)
 	{
-		return (offset >= scanSize) ? ((pixels[offset - scanSize] >> 24) & 0xff) : -1;
+		return (offset >= scanSize) ? (heights[offset - scanSize] & 0xff) : -1;
 	}
 
-	static int getPixelHeightW(int[] pixels, int offset, int scanSize)
+	static int getPixelHeightW(byte[] heights, int offset, int scanSize)
 	{
-		return ((offset & (scanSize - 1)) >= 1) ? ((pixels[offset - 1] >> 24) & 0xff) : -1;
+		return ((offset & (scanSize - 1)) >= 1) ? (heights[offset - 1] & 0xff) : -1;
 	}
 
-	public static void renderSurface(BlockColours bc, IChunk chunk, int[] pixels, int offset,
+	// render the surface of a chunk. the opaque colour of each column is
+	// written to 'pixels' and the height of its surface to the same offset in
+	// 'heights'.
+	public static void renderSurface(BlockColours bc, IChunk chunk, int[] pixels, byte[] heights, int offset,
 			int scanSize, boolean dimensionHasCeiling)
 	{
 		int chunkMaxY = chunk.getMaxY();
@@ -209,14 +216,16 @@ public class ChunkRender
 				}
 
 				int pixelOffset = offset + (z * scanSize) + x;
-				pixels[pixelOffset] = getColumnColour(
+				int colour = getColumnColour(
 						bc,
 						chunk,
 						x,
 						y,
 						z,
-						getPixelHeightW(pixels, pixelOffset, scanSize),
-						getPixelHeightN(pixels, pixelOffset, scanSize));
+						getPixelHeightW(heights, pixelOffset, scanSize),
+						getPixelHeightN(heights, pixelOffset, scanSize));
+				heights[pixelOffset] = (byte) (colour >>> 24);
+				pixels[pixelOffset] = colour | 0xff000000;
 			}
 		}
 	}
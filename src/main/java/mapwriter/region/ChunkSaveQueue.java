@@ -0,0 +1,340 @@
+package mapwriter.region;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mapwriter.util.Logging;
+
+/*
+ * Saves chunks to region files in two stages.
+ *
+ * The NBT encoding and compression of a chunk runs on a pool of encoder
+ * threads. The compressed data is then written by a queue belonging to the
+ * chunk's region file, which allocates the sectors and writes the data.
+ * Each region file queue writes its chunks one at a time in the order they
+ * were added, so writes to the same region file never overlap and a newer
+ * save of a chunk is never overwritten by an older one. Queues for different
+ * region files run in parallel.
+ *
+ * Before a chunk is queued the fingerprint of its block and biome data is
+ * compared with the fingerprint of the last save of the chunk, either still
+ * queued or already in the region file. Chunks that have not changed since
+ * then are not encoded or written again.
+ *
+ * The header of a region file is flushed when its queue becomes empty, at
+ * most once every few seconds, and when the region file is closed. Region
+ * files that have become too fragmented are compacted at the same point.
+ */
+public class ChunkSaveQueue
+{
+	private final RegionFileCache regionFileCache;
+	private final ChunkCache chunkCache;
+	private final ExecutorService encodeExecutor;
+	private final ExecutorService writeExecutor;
+
+	// write queues with chunks waiting to be written, keyed by region
+	private final Map<Long, RegionWriteQueue> writeQueues = new HashMap<Long, RegionWriteQueue>();
+	// the most recently queued save of each chunk that has not been written
+	// yet, keyed by chunk
+	private final Map<Long, PendingChunk> pendingChunks = new HashMap<Long, PendingChunk>();
+	private int pendingWrites = 0;
+	private long skippedCount = 0;
+	private boolean closed = false;
+
+	static class SaveThreadFactory implements ThreadFactory
+	{
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger();
+
+		SaveThreadFactory(String name)
+		{
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, String.format("%s-%d", this.name, this.count.incrementAndGet()));
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	}
+
+	private static class PendingChunk
+	{
+		final MwChunk chunk;
+		final long fingerprint;
+		final Future<byte[]> compressedData;
+
+		PendingChunk(MwChunk chunk, long fingerprint, Future<byte[]> compressedData)
+		{
+			this.chunk = chunk;
+			this.fingerprint = fingerprint;
+			this.compressedData = compressedData;
+		}
+	}
+
+	private class RegionWriteQueue implements Runnable
+	{
+		final Long key;
+		final LinkedList<PendingChunk> chunks = new LinkedList<PendingChunk>();
+
+		RegionWriteQueue(Long key)
+		{
+			this.key = key;
+		}
+
+		@Override
+		public void run()
+		{
+			// the region file stays acquired until the queue is removed, so
+			// the cache cannot close it during the flush or compaction below
+			RegionFile regionFile = null;
+			boolean written = false;
+			try
+			{
+				while (true)
+				{
+					PendingChunk pendingChunk;
+					synchronized (ChunkSaveQueue.this)
+					{
+						pendingChunk = this.chunks.poll();
+						if ((pendingChunk == null) && !written)
+						{
+							// the next chunk added for this region starts a new
+							// queue
+							ChunkSaveQueue.this.writeQueues.remove(this.key);
+							break;
+						}
+					}
+					if (pendingChunk == null)
+					{
+						// the queue is still registered while the header is
+						// flushed and the file compacted, so chunks added in the
+						// meantime are written by this queue after it
+						regionFile.flushIfDue();
+						regionFile.compactIfFragmented();
+						written = false;
+						continue;
+					}
+					try
+					{
+						if (regionFile == null)
+						{
+							MwChunk chunk = pendingChunk.chunk;
+							regionFile = ChunkSaveQueue.this.regionFileCache.acquireRegionFile(chunk.x << 4, chunk.z << 4, chunk.dimension);
+						}
+						written |= ChunkSaveQueue.this.writeChunk(pendingChunk, regionFile);
+					}
+					finally
+					{
+						ChunkSaveQueue.this.onChunkWritten(pendingChunk);
+					}
+				}
+			}
+			finally
+			{
+				if (regionFile != null)
+				{
+					ChunkSaveQueue.this.regionFileCache.releaseRegionFile(regionFile);
+				}
+			}
+		}
+	}
+
+	public ChunkSaveQueue(RegionFileCache regionFileCache, ChunkCache chunkCache)
+	{
+		this.regionFileCache = regionFileCache;
+		this.chunkCache = chunkCache;
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		this.encodeExecutor = Executors.newFixedThreadPool(threads, new SaveThreadFactory("MapWriter chunk encoder"));
+		this.writeExecutor = Executors.newFixedThreadPool(threads, new SaveThreadFactory("MapWriter region writer"));
+	}
+
+	private static Long getChunkKey(MwChunk chunk)
+	{
+		return Long.valueOf(MwChunk.getKey(chunk.x, chunk.z, chunk.dimension));
+	}
+
+	// add a chunk to be saved. returns true if the queue is closed.
+	public boolean addChunk(MwChunk chunk)
+	{
+		long fingerprint = ChunkNbtWriter.get().getFingerprint(chunk);
+		RegionFile regionFile = this.regionFileCache.acquireRegionFile(chunk.x << 4, chunk.z << 4, chunk.dimension);
+		try
+		{
+			synchronized (regionFile)
+			{
+				if (!regionFile.isOpen() && regionFile.exists())
+				{
+					regionFile.open();
+				}
+			}
+			return this.addChunk(chunk, fingerprint, regionFile);
+		}
+		finally
+		{
+			this.regionFileCache.releaseRegionFile(regionFile);
+		}
+	}
+
+	private boolean addChunk(final MwChunk chunk, long fingerprint, RegionFile regionFile)
+	{
+		synchronized (this)
+		{
+			if (this.closed)
+			{
+				Logging.logError("cannot save chunk %s, save queue is closed", chunk);
+				return true;
+			}
+
+			// compare with the last queued save of the chunk, or with the
+			// chunk in the region file if none are queued. the region file
+			// fingerprint is set before the pending entry is removed, so one
+			// of them is always up to date here.
+			Long chunkKey = getChunkKey(chunk);
+			PendingChunk lastPendingChunk = this.pendingChunks.get(chunkKey);
+			long lastFingerprint = (lastPendingChunk != null) ? lastPendingChunk.fingerprint : regionFile.getFingerprint(chunk.x & 31, chunk.z & 31);
+			if (lastFingerprint == fingerprint)
+			{
+				this.skippedCount++;
+				return false;
+			}
+			Future<byte[]> compressedData = this.encodeExecutor.submit(new Callable<byte[]>()
+			{
+				@Override
+				public byte[] call()
+				{
+					return chunk.getCompressedData(ChunkSaveQueue.this.getPendingWrites());
+				}
+			});
+
+			Long key = Long.valueOf(Region.getKey(chunk.x << 4, chunk.z << 4, 0, chunk.dimension));
+			RegionWriteQueue queue = this.writeQueues.get(key);
+			boolean newQueue = (queue == null);
+			if (newQueue)
+			{
+				queue = new RegionWriteQueue(key);
+				this.writeQueues.put(key, queue);
+			}
+			this.chunkCache.invalidate(chunk.x, chunk.z, chunk.dimension);
+			PendingChunk pendingChunk = new PendingChunk(chunk, fingerprint, compressedData);
+			queue.chunks.add(pendingChunk);
+			this.pendingChunks.put(chunkKey, pendingChunk);
+			this.pendingWrites++;
+			if (newQueue)
+			{
+				this.writeExecutor.execute(queue);
+			}
+		}
+		return false;
+	}
+
+	// write a chunk to its region file. returns true if the region file was
+	// written to.
+	private boolean writeChunk(PendingChunk pendingChunk, RegionFile regionFile)
+	{
+		MwChunk chunk = pendingChunk.chunk;
+		byte[] data = null;
+		try
+		{
+			data = pendingChunk.compressedData.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e)
+		{
+			Logging.logError("%s: could not encode chunk %s", e.getCause(), chunk);
+		}
+		if (data == null)
+		{
+			return false;
+		}
+
+		int x = chunk.x & 31;
+		int z = chunk.z & 31;
+
+		if (regionFile.writeChunk(x, z, data, data.length))
+		{
+			Logging.logError("could not write chunk %s to region file %s", chunk, regionFile);
+		}
+		else
+		{
+			regionFile.setFingerprint(x, z, pendingChunk.fingerprint);
+		}
+		// a rebuild may have read the old chunk while it was queued
+		this.chunkCache.invalidate(chunk.x, chunk.z, chunk.dimension);
+		return true;
+	}
+
+	private synchronized void onChunkWritten(PendingChunk pendingChunk)
+	{
+		Long chunkKey = getChunkKey(pendingChunk.chunk);
+		if (this.pendingChunks.get(chunkKey) == pendingChunk)
+		{
+			this.pendingChunks.remove(chunkKey);
+		}
+		this.pendingWrites--;
+		if (this.pendingWrites <= 0)
+		{
+			this.notifyAll();
+		}
+	}
+
+	public synchronized int getPendingWrites()
+	{
+		return this.pendingWrites;
+	}
+
+	// number of chunks not saved because they had not changed since their
+	// last save
+	public synchronized long getSkippedCount()
+	{
+		return this.skippedCount;
+	}
+
+	// stop accepting chunks and wait for all queued chunks to be written.
+	public void close()
+	{
+		synchronized (this)
+		{
+			this.closed = true;
+			while (this.pendingWrites > 0)
+			{
+				try
+				{
+					this.wait();
+				}
+				catch (InterruptedException e)
+				{
+					Logging.logError("interrupted while waiting for %d chunks to be saved", this.pendingWrites);
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		Logging.logInfo("chunk save queue: skipped %d unchanged chunks", this.getSkippedCount());
+		this.encodeExecutor.shutdown();
+		this.writeExecutor.shutdown();
+		try
+		{
+			this.writeExecutor.awaitTermination(10L, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,219 @@
+package mapwriter.region;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/*
+ * Fast LZ77 compressor using the LZ4 block format. Much faster than deflate
+ * at the cost of larger output. Used for the ChunkCompression.LZ region file
+ * compression version.
+ *
+ * A block is a sequence of:
+ *   token byte: high 4 bits literal count, low 4 bits match length - 4
+ *   extra literal count bytes if the literal count is 15 (255 means more)
+ *   literals
+ *   2 byte little endian match offset
+ *   extra match length bytes if the match length field is 15
+ * The last sequence has literals only.
+ */
+public final class LzCodec
+{
+	private static final int MIN_MATCH = 4;
+	// the last match must start at least this many bytes before the end
+	private static final int MF_LIMIT = 12;
+	// the last bytes of the input are always stored as literals
+	private static final int LAST_LITERALS = 5;
+	private static final int MAX_OFFSET = 65535;
+
+	public static final int HASH_BITS = 12;
+
+	private LzCodec()
+	{
+	}
+
+	public static int getMaxCompressedLength(int length)
+	{
+		return length + (length / 255) + 16;
+	}
+
+	private static int readInt(byte[] b, int i)
+	{
+		return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8) | ((b[i + 2] & 0xff) << 16) | ((b[i + 3] & 0xff) << 24);
+	}
+
+	private static int hash(int sequence)
+	{
+		return (sequence * -1640531535) >>> (32 - HASH_BITS);
+	}
+
+	private static int writeLength(byte[] dst, int op, int length)
+	{
+		while (length >= 255)
+		{
+			dst[op++] = (byte) 255;
+			length -= 255;
+		}
+		dst[op++] = (byte) length;
+		return op;
+	}
+
+	private static int writeSequence(byte[] src, int anchor, int literalLength, int matchLength, int offset, byte[] dst, int op)
+	{
+		int tokenPos = op++;
+		int token = Math.min(literalLength, 15) << 4;
+		if (literalLength >= 15)
+		{
+			op = writeLength(dst, op, literalLength - 15);
+		}
+		System.arraycopy(src, anchor, dst, op, literalLength);
+		op += literalLength;
+		if (matchLength >= MIN_MATCH)
+		{
+			dst[op++] = (byte) offset;
+			dst[op++] = (byte) (offset >> 8);
+			int m = matchLength - MIN_MATCH;
+			token |= Math.min(m, 15);
+			if (m >= 15)
+			{
+				op = writeLength(dst, op, m - 15);
+			}
+		}
+		dst[tokenPos] = (byte) token;
+		return op;
+	}
+
+	// compress 'length' bytes of src into dst starting at dstOffset.
+	// dst must have room for getMaxCompressedLength(length) bytes.
+	// hashTable must have 1 << HASH_BITS entries, its contents are
+	// overwritten.
+	// returns the compressed length.
+	public static int compress(byte[] src, int length, byte[] dst, int dstOffset, int[] hashTable)
+	{
+		Arrays.fill(hashTable, -1);
+		int op = dstOffset;
+		int anchor = 0;
+		int ip = 0;
+		int matchLimit = length - LAST_LITERALS;
+		int searchLimit = length - MF_LIMIT;
+
+		while (ip < searchLimit)
+		{
+			int sequence = readInt(src, ip);
+			int h = hash(sequence);
+			int ref = hashTable[h];
+			hashTable[h] = ip;
+			if ((ref < 0) || ((ip - ref) > MAX_OFFSET) || (readInt(src, ref) != sequence))
+			{
+				ip++;
+				continue;
+			}
+
+			// extend the match backwards over pending literals
+			while ((ip > anchor) && (ref > 0) && (src[ip - 1] == src[ref - 1]))
+			{
+				ip--;
+				ref--;
+			}
+
+			int matchLength = MIN_MATCH;
+			while (((ip + matchLength) < matchLimit) && (src[ip + matchLength] == src[ref + matchLength]))
+			{
+				matchLength++;
+			}
+
+			op = writeSequence(src, anchor, ip - anchor, matchLength, ip - ref, dst, op);
+			ip += matchLength;
+			anchor = ip;
+		}
+
+		// remaining literals
+		op = writeSequence(src, anchor, length - anchor, 0, 0, dst, op);
+		return op - dstOffset;
+	}
+
+	// decompress a block of srcLength bytes into exactly dstLength bytes of
+	// dst.
+	public static void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstLength) throws DataFormatException
+	{
+		decompress(ByteBuffer.wrap(src, srcOffset, srcLength), dst, dstLength);
+	}
+
+	// decompress the block between the position and limit of src, which may
+	// be a view of a mapped file, into exactly dstLength bytes of dst. the
+	// position of src is left at its limit.
+	public static void decompress(ByteBuffer src, byte[] dst, int dstLength) throws DataFormatException
+	{
+		int ip = src.position();
+		int srcEnd = src.limit();
+		int op = 0;
+		try
+		{
+			while (ip < srcEnd)
+			{
+				int token = src.get(ip++) & 0xff;
+
+				int literalLength = token >>> 4;
+				if (literalLength == 15)
+				{
+					int b;
+					do
+					{
+						b = src.get(ip++) & 0xff;
+						literalLength += b;
+					}
+					while (b == 255);
+				}
+				if (((ip + literalLength) > srcEnd) || ((op + literalLength) > dstLength))
+				{
+					throw new DataFormatException("literals past end of block");
+				}
+				src.position(ip);
+				src.get(dst, op, literalLength);
+				ip += literalLength;
+				op += literalLength;
+
+				if (ip >= srcEnd)
+				{
+					// last sequence has no match
+					break;
+				}
+
+				int offset = (src.get(ip) & 0xff) | ((src.get(ip + 1) & 0xff) << 8);
+				ip += 2;
+				int matchLength = token & 0xf;
+				if (matchLength == 15)
+				{
+					int b;
+					do
+					{
+						b = src.get(ip++) & 0xff;
+						matchLength += b;
+					}
+					while (b == 255);
+				}
+				matchLength += MIN_MATCH;
+
+				int ref = op - offset;
+				if ((offset == 0) || (ref < 0) || ((op + matchLength) > dstLength))
+				{
+					throw new DataFormatException("invalid match in block");
+				}
+				// byte by byte as the match may overlap the output
+				for (int i = 0; i < matchLength; i++)
+				{
+					dst[op++] = dst[ref++];
+				}
+			}
+		}
+		catch (IndexOutOfBoundsException e)
+		{
+			throw new DataFormatException("truncated block");
+		}
+		src.position(srcEnd);
+		if (op != dstLength)
+		{
+			throw new DataFormatException(String.format("block decompressed to %d bytes, expected %d", op, dstLength));
+		}
+	}
+}
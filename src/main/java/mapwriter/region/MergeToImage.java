@@ -19,6 +19,7 @@ public class MergeToImage
 		// this is the most likely place to run out of memory
 		BufferedImage mergedImage = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
 
+		int[] row = new int[Region.SIZE];
 		// copy region PNGs to the image
 		for (int zi = 0; zi < h; zi += Region.SIZE)
 		{
@@ -29,10 +30,14 @@ public class MergeToImage
 
 				// get region pixels
 				Region region = regionManager.getRegion(x + xi, z + zi, 0, dimension);
-				int[] regionPixels = region.surfacePixels.getPixels();
-				if (regionPixels != null)
+				TilePixels tile = region.surfacePixels.getTilePixels();
+				if (tile != null)
 				{
-					mergedImage.setRGB(xi, zi, Region.SIZE, Region.SIZE, regionPixels, 0, Region.SIZE);
+					for (int j = 0; j < Region.SIZE; j++)
+					{
+						tile.getRow(0, j, Region.SIZE, row, 0);
+						mergedImage.setRGB(xi, zi + j, Region.SIZE, 1, row, 0, Region.SIZE);
+					}
 				}
 			}
 		}
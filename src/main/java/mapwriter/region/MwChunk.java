@@ -11,15 +11,10 @@ import net.minecraft.block.state.IBlockState;
 import net.minecraft.client.Minecraft;
 import net.minecraft.init.Biomes;
 import net.minecraft.init.Blocks;
-import net.minecraft.nbt.CompressedStreamTools;
-import net.minecraft.nbt.NBTTagCompound;
-import net.minecraft.nbt.NBTTagList;
 import net.minecraft.tileentity.TileEntity;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.ChunkPos;
 import net.minecraft.world.biome.Biome;
-import net.minecraft.world.chunk.Chunk;
-import net.minecraft.world.chunk.NibbleArray;
 import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
 
 public class MwChunk implements IChunk
@@ -64,110 +59,51 @@ public class MwChunk implements IChunk
 	// load from anvil file
 	public static MwChunk read(int x, int z, int dimension, RegionFileCache regionFileCache)
 	{
-		//
-		Boolean flag = true;
 		byte[] biomeArray = null;
 		ExtendedBlockStorage[] data = new ExtendedBlockStorage[16];
 		Map<BlockPos, TileEntity> TileEntityMap = new HashMap<BlockPos, TileEntity>();
 
 		DataInputStream dis = null;
-		RegionFile regionFile = regionFileCache.getRegionFile(x << 4, z << 4, dimension);
-		if (!regionFile.isOpen())
+		RegionFile regionFile = regionFileCache.acquireRegionFile(x << 4, z << 4, dimension);
+		try
 		{
-			if (regionFile.exists())
+			synchronized (regionFile)
 			{
-				regionFile.open();
+				if (!regionFile.isOpen())
+				{
+					if (regionFile.exists())
+					{
+						regionFile.open();
+					}
+				}
+
+				if (regionFile.isOpen())
+				{
+					dis = regionFile.getChunkDataInputStream(x & 31, z & 31);
+				}
 			}
 		}
-
-		if (regionFile.isOpen())
+		finally
 		{
-			dis = regionFile.getChunkDataInputStream(x & 31, z & 31);
+			regionFileCache.releaseRegionFile(regionFile);
 		}
 
 		if (dis != null)
 		{
 			try
 			{
+				// only the block and biome data is read, tile entities are
+				// not needed to render the map
+				ChunkNbtReader reader = new ChunkNbtReader(dis);
+				reader.read();
 
-				// chunk NBT structure:
-				//
-				// COMPOUND ""
-				// COMPOUND "level"
-				// INT "xPos"
-				// INT "zPos"
-				// LONG "LastUpdate"
-				// BYTE "TerrainPopulated"
-				// BYTE_ARRAY "Biomes"
-				// INT_ARRAY "HeightMap"
-				// LIST(COMPOUND) "Sections"
-				// BYTE "Y"
-				// BYTE_ARRAY "Blocks"
-				// BYTE_ARRAY "Add"
-				// BYTE_ARRAY "Data"
-				// BYTE_ARRAY "BlockLight"
-				// BYTE_ARRAY "SkyLight"
-				// END
-				// LIST(COMPOUND) "Entities"
-				// LIST(COMPOUND) "TileEntities"
-				// LIST(COMPOUND) "TileTicks"
-				// END
-				// END
-				NBTTagCompound nbttagcompound = CompressedStreamTools.read(dis);
-				NBTTagCompound level = nbttagcompound.getCompoundTag("Level");
-
-				int xNbt = level.getInteger("xPos");
-				int zNbt = level.getInteger("zPos");
-
-				if ((xNbt != x) || (zNbt != z))
-				{
-					Logging.logWarning("chunk (%d, %d) has NBT coords (%d, %d)", x, z, xNbt, zNbt);
-				}
-
-				NBTTagList sections = level.getTagList("Sections", 10);
-
-				for (int k = 0; k < sections.tagCount(); ++k)
-				{
-					NBTTagCompound section = sections.getCompoundTagAt(k);
-					int y = section.getByte("Y");
-					ExtendedBlockStorage extendedblockstorage = new ExtendedBlockStorage(
-							y << 4,
-							flag);
-					byte[] abyte = nbttagcompound.getByteArray("Blocks");
-					NibbleArray nibblearray = new NibbleArray(nbttagcompound.getByteArray("Data"));
-					NibbleArray nibblearray1 = nbttagcompound.hasKey("Add", 7) ? new NibbleArray(
-							nbttagcompound.getByteArray("Add")) : null;
-					extendedblockstorage.getData().setDataFromNBT(abyte, nibblearray, nibblearray1);
-					extendedblockstorage.setBlocklightArray(
-							new NibbleArray(nbttagcompound.getByteArray("BlockLight")));
-
-					if (flag)
-					{
-						extendedblockstorage.setSkylightArray(
-								new NibbleArray(nbttagcompound.getByteArray("SkyLight")));
-					}
-
-					extendedblockstorage.removeInvalidBlocks();
-					data[y] = extendedblockstorage;
-				}
-
-				biomeArray = level.getByteArray("Biomes");
-
-				NBTTagList nbttaglist2 = level.getTagList("TileEntities", 10);
-
-				if (nbttaglist2 != null)
+				if ((reader.xPos != x) || (reader.zPos != z))
 				{
-					for (int i1 = 0; i1 < nbttaglist2.tagCount(); ++i1)
-					{
-						NBTTagCompound nbttagcompound4 = nbttaglist2.getCompoundTagAt(i1);
-						TileEntity tileentity = TileEntity.func_190200_a(null, nbttagcompound4);
-						if (tileentity != null)
-						{
-							TileEntityMap.put(tileentity.getPos(), tileentity);
-						}
-					}
+					Logging.logWarning("chunk (%d, %d) has NBT coords (%d, %d)", x, z, reader.xPos, reader.zPos);
 				}
 
+				data = reader.data;
+				biomeArray = reader.biomeArray;
 			}
 			catch (IOException e)
 			{
@@ -312,153 +248,33 @@ public class MwChunk implements IChunk
 				.get(x & 15, y & 15, z & 15) : Blocks.AIR.getDefaultState();
 	}
 
-	// changed to use the NBTTagCompound that minecraft uses. this makes the
-	// local way of saving anvill data the same as Minecraft world data
-	private NBTTagCompound writeChunkToNBT()
+	// encode and compress the chunk NBT, returning the data to be stored in
+	// a region file or null on error. used by ChunkSaveQueue to compress
+	// chunks in parallel before they are written. 'backlog' is the number of
+	// chunks waiting to be saved.
+	public synchronized byte[] getCompressedData(int backlog)
 	{
-		NBTTagCompound level = new NBTTagCompound();
-		NBTTagCompound compound = new NBTTagCompound();
-		level.setTag("Level", compound);
-
-		compound.setInteger("xPos", this.x);
-		compound.setInteger("zPos", this.z);
-		ExtendedBlockStorage[] aextendedblockstorage = this.dataArray;
-		NBTTagList nbttaglist = new NBTTagList();
-		boolean flag = true;
-
-		for (ExtendedBlockStorage extendedblockstorage : aextendedblockstorage)
+		ChunkBuffers buffers = ChunkBuffers.get();
+		buffers.uncompressedBuffer.reset();
+		DataOutputStream dos = new DataOutputStream(buffers.uncompressedBuffer);
+		try
 		{
-			if (extendedblockstorage != Chunk.NULL_BLOCK_STORAGE)
-			{
-				NBTTagCompound nbttagcompound = new NBTTagCompound();
-				nbttagcompound.setByte(
-						"Y",
-						(byte) (extendedblockstorage.getYLocation() >> 4 & 255));
-				byte[] abyte = new byte[4096];
-				NibbleArray nibblearray = new NibbleArray();
-				NibbleArray nibblearray1 = extendedblockstorage.getData().getDataForNBT(
-						abyte,
-						nibblearray);
-				nbttagcompound.setByteArray("Blocks", abyte);
-				nbttagcompound.setByteArray("Data", nibblearray.getData());
-
-				if (nibblearray1 != null)
-				{
-					nbttagcompound.setByteArray("Add", nibblearray1.getData());
-				}
-
-				nbttagcompound.setByteArray(
-						"BlockLight",
-						extendedblockstorage.getBlocklightArray().getData());
-
-				if (extendedblockstorage.getSkylightArray() != null && extendedblockstorage
-						.getSkylightArray()
-						.getData() != null)
-				{
-					nbttagcompound.setByteArray(
-							"SkyLight",
-							extendedblockstorage.getSkylightArray().getData());
-				}
-				else
-				{
-					nbttagcompound.setByteArray(
-							"SkyLight",
-							new byte[extendedblockstorage.getBlocklightArray().getData().length]);
-				}
-
-				nbttaglist.appendTag(nbttagcompound);
-			}
+			ChunkNbtWriter.get().write(this, dos);
+			dos.close();
+			buffers.compress(backlog);
 		}
-
-		compound.setTag("Sections", nbttaglist);
-		compound.setByteArray("Biomes", biomeArray);
-
-		NBTTagList nbttaglist2 = new NBTTagList();
-
-		for (TileEntity tileentity : tileentityMap.values())
+		catch (IOException e)
 		{
-			try
-			{
-				NBTTagCompound nbttagcompound3 = tileentity.writeToNBT(new NBTTagCompound());
-				nbttaglist2.appendTag(nbttagcompound3);
-			}
-			catch (Exception e)
-			{
-				// we eat this exception becous we are doing something we
-				// shouldnt do on client side.
-			}
+			Logging.logError("%s: could not encode chunk (%d, %d)", e, this.x, this.z);
+			return null;
 		}
-
-		compound.setTag("TileEntities", nbttaglist2);
-
-		return level;
+		return buffers.outputBuffer.toByteArray();
 	}
 
-	public synchronized boolean write(RegionFileCache regionFileCache)
+	// pack the chunk coordinates and dimension into a key
+	public static long getKey(int x, int z, int dimension)
 	{
-		boolean error = false;
-		RegionFile regionFile = regionFileCache.getRegionFile(
-				this.x << 4,
-				this.z << 4,
-				this.dimension);
-		if (!regionFile.isOpen())
-		{
-			error = regionFile.open();
-		}
-		if (!error)
-		{
-			DataOutputStream dos = regionFile.getChunkDataOutputStream(this.x & 31, this.z & 31);
-			if (dos != null)
-			{
-				// Nbt chunkNbt = this.getNbt();
-				try
-				{
-					// RegionManager.logInfo("writing chunk (%d, %d) to region
-					// file",
-					// this.x, this.z);
-					// chunkNbt.writeElement(dos);
-					// use minecraft build in save tool for saving the Anvil
-					// Data
-					CompressedStreamTools.write(this.writeChunkToNBT(), dos);
-				}
-				catch (IOException e)
-				{
-					Logging.logError(
-							"%s: could not write chunk (%d, %d) to region file",
-							e,
-							this.x,
-							this.z);
-					error = true;
-				}
-				finally
-				{
-					try
-					{
-						dos.close();
-					}
-					catch (IOException e)
-					{
-						Logging.logError("%s while closing chunk data output stream", e);
-					}
-				}
-			}
-			else
-			{
-				Logging.logError(
-						"error: could not get output stream for chunk (%d, %d)",
-						this.x,
-						this.z);
-			}
-		}
-		else
-		{
-			Logging.logError(
-					"error: could not open region file for chunk (%d, %d)",
-					this.x,
-					this.z);
-		}
-
-		return error;
+		return (((long) dimension) << 48) ^ (((long) (z & 0xffffff)) << 24) ^ (x & 0xffffff);
 	}
 
 	public Long getCoordIntPair()
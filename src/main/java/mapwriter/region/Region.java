@@ -13,6 +13,8 @@ public class Region
 	public static final int SHIFT = 9;
 	public static final int SIZE = 1 << SHIFT;
 	public static final int MASK = -SIZE;
+	// memory used by a region apart from its pixels and manifest
+	private static final long REGION_OVERHEAD = 256;
 
 	public final int x;
 	public final int z;
@@ -22,6 +24,8 @@ public class Region
 	public final int size;
 
 	public SurfacePixels surfacePixels;
+	// only used for zoom level 0 regions, null otherwise
+	public final RenderManifest renderManifest;
 
 	public Region(RegionManager regionManager, int x, int z, int zoomLevel, int dimension)
 	{
@@ -36,18 +40,45 @@ public class Region
 
 		this.key = getKey(this.x, this.z, this.zoomLevel, this.dimension);
 
-		File surfaceImageFile = this.getImageFile();
-		this.surfacePixels = new SurfacePixels(this, surfaceImageFile);
+		TileSlab tileSlab = regionManager.getTileSlab(this.dimension, this.zoomLevel);
+		this.surfacePixels = new SurfacePixels(this, tileSlab, this.getImageFile(), this.getPngFile());
+
+		if (this.zoomLevel == 0)
+		{
+			this.renderManifest = new RenderManifest(this.getManifestFile(), regionManager.tileSaveQueue, this.key);
+			if (!this.surfacePixels.exists())
+			{
+				// nothing has been rendered if there is no image
+				this.renderManifest.clear();
+			}
+		}
+		else
+		{
+			this.renderManifest = null;
+		}
 	}
 
+	// the render manifest is saved along with the pixels by the tile save
+	// queue
 	public void close()
 	{
 		this.surfacePixels.close();
 	}
 
+	// queue the changes of the region to be saved without closing it.
+	// returns true if anything was queued.
+	public boolean flush()
+	{
+		return this.surfacePixels.flush();
+	}
+
 	public void clear()
 	{
 		this.surfacePixels.clear();
+		if (this.renderManifest != null)
+		{
+			this.renderManifest.clear();
+		}
 	}
 
 	@Override
@@ -65,18 +96,44 @@ public class Region
 		return dir;
 	}
 
+	// directory holding the images of all regions of a dimension and zoom
+	// level
+	public static File getZoomDir(File imageDir, int dimension, int zoomLevel)
+	{
+		File dimDir = addDimensionDirToPath(imageDir, dimension);
+		return new File(dimDir, "z" + zoomLevel);
+	}
+
 	public File getImageFile()
 	{
-		File dimDir = addDimensionDirToPath(this.regionManager.imageDir, this.dimension);
-		File zoomDir = new File(dimDir, "z" + this.zoomLevel);
+		File zoomDir = getZoomDir(this.regionManager.imageDir, this.dimension, this.zoomLevel);
 
 		zoomDir.mkdirs();
 
+		String filename = String.format("%d.%d.%s", this.x >> (Region.SHIFT + this.zoomLevel), this.z >> (Region.SHIFT + this.zoomLevel), TileFile.EXTENSION);
+
+		return new File(zoomDir, filename);
+	}
+
+	// region image saved as PNG by older versions
+	public File getPngFile()
+	{
+		File zoomDir = getZoomDir(this.regionManager.imageDir, this.dimension, this.zoomLevel);
+
 		String filename = String.format("%d.%d.png", this.x >> (Region.SHIFT + this.zoomLevel), this.z >> (Region.SHIFT + this.zoomLevel));
 
 		return new File(zoomDir, filename);
 	}
 
+	public File getManifestFile()
+	{
+		File zoomDir = getZoomDir(this.regionManager.imageDir, this.dimension, this.zoomLevel);
+
+		String filename = String.format("%d.%d.rendered", this.x >> (Region.SHIFT + this.zoomLevel), this.z >> (Region.SHIFT + this.zoomLevel));
+
+		return new File(zoomDir, filename);
+	}
+
 	public boolean equals(int x, int z, int zoomLevel, int dimension)
 	{
 		x &= -this.size;
@@ -99,13 +156,24 @@ public class Region
 		return equal;
 	}
 
-	public static Long getKey(int x, int z, int zoomLevel, int dimension)
+	public static long getKey(int x, int z, int zoomLevel, int dimension)
 	{
 		x = (x >> (Region.SHIFT + zoomLevel)) & 0xffff;
 		z = (z >> (Region.SHIFT + zoomLevel)) & 0xffff;
 		zoomLevel = zoomLevel & 0xff;
 		dimension = dimension & 0xff;
-		return Long.valueOf((((long) dimension) << 40) | (((long) zoomLevel) << 32) | (((long) z) << 16) | (x));
+		return (((long) dimension) << 40) | (((long) zoomLevel) << 32) | (((long) z) << 16) | (x);
+	}
+
+	// approximate number of bytes of memory used by the region
+	public long getMemorySize()
+	{
+		long size = REGION_OVERHEAD + this.surfacePixels.getMemorySize();
+		if (this.renderManifest != null)
+		{
+			size += this.renderManifest.getMemorySize();
+		}
+		return size;
 	}
 
 	public int getPixelOffset(int x, int z)
@@ -113,9 +181,17 @@ public class Region
 		return (((z >> this.zoomLevel) & (Region.SIZE - 1)) << Region.SHIFT) + ((x >> this.zoomLevel) & (Region.SIZE - 1));
 	}
 
-	public int[] getPixels()
+	// the pixels of the region, or null if there is no image of it
+	public TilePixels getTilePixels()
 	{
-		return this.surfacePixels.getPixels();
+		return this.surfacePixels.getTilePixels();
+	}
+
+	// height of the surface at a block, or -1 if it is not known
+	public int getHeight(int x, int z)
+	{
+		TilePixels tile = this.surfacePixels.getTilePixels();
+		return ((tile != null) && tile.hasHeights()) ? tile.getHeight(this.getPixelOffset(x, z)) : -1;
 	}
 
 	public boolean isAreaWithin(int x, int z, int w, int h, int dimension)
@@ -130,9 +206,9 @@ public class Region
 	// on failure.
 	public Region updateNextZoomLevel(int x, int z, int w, int h)
 	{
-		int[] srcPixels = this.surfacePixels.getPixels();
+		TilePixels srcTile = this.surfacePixels.getTilePixels();
 		Region dstRegion = null;
-		if (srcPixels != null)
+		if (srcTile != null)
 		{
 			int dstZoomLevel = this.zoomLevel + 1;
 			if (dstZoomLevel <= this.regionManager.maxZoom)
@@ -149,22 +225,21 @@ public class Region
 				int dstX = (x >> dstRegion.zoomLevel) & (Region.SIZE - 1);
 				int dstZ = (z >> dstRegion.zoomLevel) & (Region.SIZE - 1);
 
-				dstRegion.surfacePixels.updateScaled(srcPixels, srcX, srcZ, dstX, dstZ, dstW, dstH);
+				dstRegion.surfacePixels.updateScaled(srcTile, srcX, srcZ, dstX, dstZ, dstW, dstH);
+				// the next zoom level is updated later
+				dstRegion.updateZoomLevels(x, z, w, h);
 			}
 		}
 
 		return dstRegion;
 	}
 
-	// update all higher zoom level regions that this region
-	// lies within
+	// mark an area of this region to be updated in all higher zoom level
+	// regions that this region lies within. the update is done by
+	// RegionManager.updateZoomLevels.
 	public void updateZoomLevels(int x, int z, int w, int h)
 	{
-		Region nextRegion = this;
-		while (nextRegion != null)
-		{
-			nextRegion = nextRegion.updateNextZoomLevel(x, z, w, h);
-		}
+		this.regionManager.zoomLevelUpdates.add(this, x, z, w, h);
 	}
 
 	// update this entire region in the next zoom level
@@ -173,11 +248,15 @@ public class Region
 		this.updateZoomLevels(this.x, this.z, this.size, this.size);
 	}
 
-	public void updateChunk(MwChunk chunk)
+	// returns true if the pixels of the chunk changed
+	public boolean updateChunk(MwChunk chunk)
 	{
+		boolean changed = false;
 		if (this.zoomLevel == 0)
 		{
-			this.surfacePixels.updateChunk(chunk);
+			changed = this.surfacePixels.updateChunk(chunk);
+			this.renderManifest.setRenderTime(chunk.x, chunk.z, (int) (System.currentTimeMillis() / 1000L));
 		}
+		return changed;
 	}
 }
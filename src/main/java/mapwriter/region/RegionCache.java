@@ -0,0 +1,379 @@
+package mapwriter.region;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import mapwriter.config.Config;
+import mapwriter.util.Logging;
+
+/*
+ * Cache of the regions loaded by the RegionManager, limited by the memory
+ * used by the regions rather than their number.
+ *
+ * The regions are kept in an open addressing hash table of primitive long
+ * keys, so get takes the long from Region.getKey and looking up a region
+ * does not box the key or reorder a list. Region.key itself is a Long as it
+ * is also the key of the tile save queue and zoom level update maps.
+ * Regions are evicted with the CLOCK algorithm: a hit only sets the
+ * referenced flag of the slot, and the clock hand sweeps the table clearing
+ * flags until it finds a region that has not been used since the last
+ * sweep.
+ *
+ * The size of each region is recorded in its slot and kept in a running
+ * total, so checking the limit does not walk the table. Regions grow after
+ * they are added, when their pixels are loaded or a chunk is drawn into
+ * them, so the size of a region is measured again each time it is returned
+ * by get. The limit is checked again by update after a region has been
+ * changed, and by trim once a batch of work no longer uses any region.
+ *
+ * The limit is Config.regionCacheSizeMB, or a fraction of the maximum heap
+ * size if that is 0. If the old generation is still more than
+ * HEAP_PRESSURE_LIMIT full after it has been collected, half of the cached
+ * memory is released. The usage measured after a collection does not
+ * include garbage that has not been collected yet, and half of the cache is
+ * released at most once per collection of the old generation, as the
+ * memory freed is only seen after the next one.
+ *
+ * Only used from the background thread.
+ */
+public class RegionCache
+{
+	private static final int MIN_CAPACITY = 64;
+	// fraction of the maximum heap size used if no size is configured
+	private static final int DEFAULT_HEAP_DIVISOR = 8;
+	private static final double HEAP_PRESSURE_LIMIT = 0.85;
+
+	// the heap pool holding long lived objects and the collectors that
+	// collect it, or null if the JVM does not report one
+	private static final MemoryPoolMXBean OLD_GEN_POOL = getOldGenPool();
+	private static final List<GarbageCollectorMXBean> OLD_GEN_COLLECTORS = getCollectors(OLD_GEN_POOL);
+
+	private long[] keys = new long[MIN_CAPACITY];
+	private Region[] regions = new Region[MIN_CAPACITY];
+	// size of the region in each slot when it was last measured
+	private long[] sizes = new long[MIN_CAPACITY];
+	private boolean[] referenced = new boolean[MIN_CAPACITY];
+	private int count = 0;
+	private int hand = 0;
+	// sum of the recorded region sizes
+	private long size = 0;
+
+	// old generation collection count when half of the cache was last
+	// released
+	private long lastShedCollectionCount = -1;
+	private long evictionCount = 0;
+
+	private static int hash(long key)
+	{
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	private int findSlot(long key)
+	{
+		int mask = this.keys.length - 1;
+		int i = hash(key) & mask;
+		while (this.regions[i] != null)
+		{
+			if (this.keys[i] == key)
+			{
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+		return ~i;
+	}
+
+	public Region get(long key)
+	{
+		int i = this.findSlot(key);
+		if (i < 0)
+		{
+			return null;
+		}
+		this.referenced[i] = true;
+		// the caller may still be using other regions, so only record any
+		// growth here and leave evicting to update or trim
+		this.measure(i);
+		return this.regions[i];
+	}
+
+	// measure a region again after it has been changed, and evict other
+	// regions if it has grown past the limit of the cache
+	public void update(Region region)
+	{
+		int i = this.findSlot(region.key);
+		if ((i >= 0) && (this.regions[i] == region))
+		{
+			this.measure(i);
+			this.trim(region);
+		}
+	}
+
+	// evict regions until the cache is within its limit. must only be
+	// called when no region is in use.
+	public void trim()
+	{
+		this.trim(null);
+	}
+
+	private void measure(int i)
+	{
+		long regionSize = this.regions[i].getMemorySize();
+		this.size += regionSize - this.sizes[i];
+		this.sizes[i] = regionSize;
+	}
+
+	// add a region, then evict regions other than the one added until the
+	// cache is within its limits. a region with the same key is closed and
+	// replaced.
+	public void put(Region region)
+	{
+		if ((this.count + 1) * 2 > this.keys.length)
+		{
+			this.resize(this.keys.length * 2);
+		}
+		long key = region.key;
+		int i = this.findSlot(key);
+		if (i >= 0)
+		{
+			if (this.regions[i] != region)
+			{
+				this.regions[i].close();
+			}
+			this.size -= this.sizes[i];
+		}
+		else
+		{
+			i = ~i;
+			this.count++;
+		}
+		long regionSize = region.getMemorySize();
+		this.keys[i] = key;
+		this.regions[i] = region;
+		this.sizes[i] = regionSize;
+		this.referenced[i] = true;
+		this.size += regionSize;
+		this.trim(region);
+	}
+
+	private void resize(int capacity)
+	{
+		long[] oldKeys = this.keys;
+		Region[] oldRegions = this.regions;
+		long[] oldSizes = this.sizes;
+		boolean[] oldReferenced = this.referenced;
+		this.keys = new long[capacity];
+		this.regions = new Region[capacity];
+		this.sizes = new long[capacity];
+		this.referenced = new boolean[capacity];
+		for (int j = 0; j < oldKeys.length; j++)
+		{
+			if (oldRegions[j] != null)
+			{
+				int i = ~this.findSlot(oldKeys[j]);
+				this.keys[i] = oldKeys[j];
+				this.regions[i] = oldRegions[j];
+				this.sizes[i] = oldSizes[j];
+				this.referenced[i] = oldReferenced[j];
+			}
+		}
+		this.hand = 0;
+	}
+
+	// remove the entry in slot i, moving back later entries of the same probe
+	// sequence so that they can still be found
+	private void removeSlot(int i)
+	{
+		int mask = this.keys.length - 1;
+		this.size -= this.sizes[i];
+		this.regions[i] = null;
+		this.sizes[i] = 0;
+		this.referenced[i] = false;
+		this.count--;
+		int j = i;
+		while (true)
+		{
+			j = (j + 1) & mask;
+			if (this.regions[j] == null)
+			{
+				break;
+			}
+			int home = hash(this.keys[j]) & mask;
+			// move the entry at j to the gap at i if its home slot is not
+			// in the cyclic range (i, j]
+			boolean inRange = (i <= j) ? ((i < home) && (home <= j)) : ((i < home) || (home <= j));
+			if (!inRange)
+			{
+				this.keys[i] = this.keys[j];
+				this.regions[i] = this.regions[j];
+				this.sizes[i] = this.sizes[j];
+				this.referenced[i] = this.referenced[j];
+				this.regions[j] = null;
+				this.sizes[j] = 0;
+				this.referenced[j] = false;
+				i = j;
+			}
+		}
+	}
+
+	public static long getMaxSize()
+	{
+		if (Config.regionCacheSizeMB > 0)
+		{
+			return Config.regionCacheSizeMB * 1024L * 1024L;
+		}
+		return Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_DIVISOR;
+	}
+
+	// the old generation is the heap pool that has both a usage threshold
+	// and a collection usage threshold. the young generation pools only
+	// support the latter.
+	private static MemoryPoolMXBean getOldGenPool()
+	{
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if ((pool.getType() == MemoryType.HEAP) && pool.isUsageThresholdSupported() && pool.isCollectionUsageThresholdSupported())
+			{
+				return pool;
+			}
+		}
+		return null;
+	}
+
+	private static List<GarbageCollectorMXBean> getCollectors(MemoryPoolMXBean pool)
+	{
+		List<GarbageCollectorMXBean> list = new ArrayList<GarbageCollectorMXBean>();
+		if (pool != null)
+		{
+			for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+			{
+				if (Arrays.asList(collector.getMemoryPoolNames()).contains(pool.getName()))
+				{
+					list.add(collector);
+				}
+			}
+		}
+		return list;
+	}
+
+	// number of times the old generation has been collected
+	private static long getCollectionCount()
+	{
+		long collectionCount = 0;
+		for (GarbageCollectorMXBean collector : OLD_GEN_COLLECTORS)
+		{
+			collectionCount += Math.max(0, collector.getCollectionCount());
+		}
+		return collectionCount;
+	}
+
+	// returns true if the old generation was still nearly full after it was
+	// last collected
+	private static boolean isHeapLow()
+	{
+		if (OLD_GEN_POOL == null)
+		{
+			return false;
+		}
+		MemoryUsage usage = OLD_GEN_POOL.getCollectionUsage();
+		if (usage == null)
+		{
+			return false;
+		}
+		long max = usage.getMax();
+		if (max < 0)
+		{
+			max = Runtime.getRuntime().maxMemory();
+		}
+		return usage.getUsed() > (max * HEAP_PRESSURE_LIMIT);
+	}
+
+	public long getSize()
+	{
+		return this.size;
+	}
+
+	private void trim(Region keep)
+	{
+		long maxSize = getMaxSize();
+		if (isHeapLow())
+		{
+			// the memory released is only seen in the collection usage
+			// after the next collection of the old generation
+			long collectionCount = getCollectionCount();
+			if (collectionCount != this.lastShedCollectionCount)
+			{
+				this.lastShedCollectionCount = collectionCount;
+				maxSize = Math.min(maxSize, this.size / 2);
+				Logging.logInfo("heap usage is high after garbage collection, reducing loaded regions from %d KB to %d KB", this.size / 1024, maxSize / 1024);
+			}
+		}
+		// each pass of the hand clears every referenced flag, so after two
+		// passes every region other than 'keep' is a candidate
+		int steps = this.keys.length * 2;
+		while ((this.size > maxSize) && (this.count > 1) && (steps-- > 0))
+		{
+			Region region = this.regions[this.hand];
+			if ((region == null) || (region == keep))
+			{
+				this.hand = (this.hand + 1) & (this.keys.length - 1);
+			}
+			else if (this.referenced[this.hand])
+			{
+				this.referenced[this.hand] = false;
+				this.hand = (this.hand + 1) & (this.keys.length - 1);
+			}
+			else
+			{
+				// the hand stays on this slot, which removeSlot may have
+				// filled with a later entry
+				this.removeSlot(this.hand);
+				region.close();
+				this.evictionCount++;
+			}
+		}
+	}
+
+	public List<Region> getRegions()
+	{
+		List<Region> list = new ArrayList<Region>(this.count);
+		for (Region region : this.regions)
+		{
+			if (region != null)
+			{
+				list.add(region);
+			}
+		}
+		return list;
+	}
+
+	public int size()
+	{
+		return this.count;
+	}
+
+	public void clear()
+	{
+		this.keys = new long[MIN_CAPACITY];
+		this.regions = new Region[MIN_CAPACITY];
+		this.sizes = new long[MIN_CAPACITY];
+		this.referenced = new boolean[MIN_CAPACITY];
+		this.count = 0;
+		this.hand = 0;
+		this.size = 0;
+	}
+
+	public String getStats()
+	{
+		return String.format("%d regions, %d KB of %d KB, %d evictions", this.count, this.getSize() / 1024, getMaxSize() / 1024, this.evictionCount);
+	}
+}
@@ -1,19 +1,22 @@
 package mapwriter.region;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.InflaterInputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
+import mapwriter.config.Config;
 import mapwriter.util.Logging;
 
 /*
@@ -26,12 +29,43 @@ public class RegionFile
 {
 
 	private final File file;
+	// number of users that need the file to stay open, or -1 once the file
+	// has been evicted from the RegionFileCache
+	final AtomicInteger pinCount = new AtomicInteger();
+	// value of the RegionFileCache use counter when the file was last
+	// acquired
+	volatile long lastUse = 0;
 	private int lengthInSectors = 0;
 	private RandomAccessFile fin = null;
 
+	// read only mapping of the file used by getChunkDataInputStream when
+	// mapped reads are enabled. remapped when the file grows past the end of
+	// the current mapping.
+	private MappedByteBuffer mappedBuffer = null;
+	private boolean mappedReads = false;
+
 	private Section[] chunkSectionsArray = new Section[4096];
 	private int[] timestampArray = new int[4096];
-	private List<Boolean> filledSectorArray = null;
+	private RegionFileSectorMap sectorMap = null;
+	private final ChunkFingerprints fingerprints;
+
+	// chunk slots whose location or timestamp has changed since the header
+	// was last written to the file.
+	private final BitSet dirtySlots = new BitSet(1024);
+	// sections still referenced by the header in the file. they are only
+	// released once the new header has been written, so a crash before then
+	// can never leave the header pointing at overwritten sectors.
+	private final List<Section> pendingFreeSections = new ArrayList<Section>();
+
+	// minimum time between header flushes started by flushIfDue
+	private static final long FLUSH_INTERVAL_MS = 5000L;
+	private long lastFlushTime = 0L;
+
+	private static final int HEADER_SIZE = 8192;
+	// do not compact files with less than 1 MB of free sectors
+	private static final int MIN_COMPACT_FREE_SECTORS = 256;
+	private static final int JOURNAL_MAGIC = 0x4d574a31;
+	private static final int COMPACT_MAGIC = 0x4d574331;
 
 	private class Section
 	{
@@ -58,6 +92,7 @@ public class RegionFile
 	public RegionFile(File file)
 	{
 		this.file = file;
+		this.fingerprints = new ChunkFingerprints(new File(file.getPath() + ".fingerprints"));
 	}
 
 	@Override
@@ -71,160 +106,487 @@ public class RegionFile
 		return this.file.isFile();
 	}
 
-	public boolean isOpen()
+	public synchronized boolean isOpen()
 	{
 		return (this.fin != null);
 	}
 
-	// set the corresponding bits in filledSectorArray to 'filled'
-	// for 'count' sectors, starting at 'firstSector'.
-	private void setFilledSectorArray(Section section, boolean filled)
+	// set the sectors covered by 'section' to filled or free in the sector
+	// map.
+	private void setFilledSectors(Section section, boolean filled)
 	{
-		int endSector = section.startSector + section.length;
-		int sectorsToAppend = (endSector + 1) - this.filledSectorArray.size();
-		for (int i = 0; i < sectorsToAppend; i++)
+		if (filled && this.sectorMap.isAnyFilled(section.startSector, section.length))
 		{
-			this.filledSectorArray.add(Boolean.valueOf(false));
+			Logging.logError("sectors %d to %d already filled, possible chunk overlap", section.startSector, (section.startSector + section.length) - 1);
 		}
-		for (int i = section.startSector; i < endSector; i++)
+		this.sectorMap.set(section.startSector, section.length, filled);
+	}
+
+	private boolean checkSectionOverlaps(Section section)
+	{
+		return this.sectorMap.isAnyFilled(section.startSector, section.length);
+	}
+
+	private Section getFreeSection(int requiredLength)
+	{
+		// use the smallest run of free sectors the chunk fits in, or append
+		// to the end of the file.
+		return new Section(this.sectorMap.getFreeSection(requiredLength), requiredLength);
+	}
+
+	// counts of the filled and free sectors between the header and the last
+	// filled sector
+	public synchronized int getFilledSectorCount()
+	{
+		// start at 2 to skip headers
+		return this.sectorMap.getFilledCount(2, this.sectorMap.getLength());
+	}
+
+	public synchronized int getFreeSectorCount()
+	{
+		return Math.max(0, this.sectorMap.getLength() - 2) - this.getFilledSectorCount();
+	}
+
+	public synchronized void printInfo()
+	{
+		int length = this.sectorMap.getLength();
+		int filledCount = this.getFilledSectorCount();
+		int freeCount = this.getFreeSectorCount();
+		Logging.logInfo("Region File %s: filled sectors = %d, free sectors = %d", this, filledCount, freeCount);
+
+		String s = "";
+		int i;
+		for (i = 0; i < length; i++)
 		{
-			if (filled && this.filledSectorArray.get(i))
+			if ((i & 31) == 0)
 			{
-				Logging.logError("sector %d already filled, possible chunk overlap", i);
+				s = String.format("%04x:", i);
+			}
+			s += this.sectorMap.isFilled(i) ? '1' : '0';
+			if ((i & 31) == 31)
+			{
+				Logging.logInfo("%s", s);
 			}
-			this.filledSectorArray.set(i, Boolean.valueOf(filled));
+		}
+		if ((i & 31) != 31)
+		{
+			Logging.logInfo("%s", s);
 		}
 	}
 
-	private boolean checkSectionOverlaps(Section section)
+	private Section getChunkSection(int x, int z)
+	{
+		return this.chunkSectionsArray[getChunkIndex(x, z)];
+	}
+
+	private static int getChunkIndex(int x, int z)
+	{
+		return ((z & 31) << 5) | (x & 31);
+	}
+
+	// update the location and timestamp of a chunk in memory only.
+	// the header is written to the file by flush().
+	private void updateChunkSection(int x, int z, Section newSection)
+	{
+		int chunkIndex = getChunkIndex(x, z);
+		this.chunkSectionsArray[chunkIndex] = newSection;
+		this.timestampArray[chunkIndex] = (int) (System.currentTimeMillis() / 1000L);
+		this.dirtySlots.set(chunkIndex);
+	}
+
+	public synchronized boolean hasChunk(int x, int z)
+	{
+		Section section = this.getChunkSection(x, z);
+		return (section != null) && (section.length > 0);
+	}
+
+	public synchronized int getTimestamp(int x, int z)
 	{
-		// get end sector, limiting to length of the filled sector array as all
-		// sectors past the
-		// end of the file are assumed free.
-		int endSector = Math.min(section.startSector + section.length, this.filledSectorArray.size());
-		boolean overlaps = false;
-		for (int i = section.startSector; i < endSector; i++)
+		return this.timestampArray[getChunkIndex(x, z)];
+	}
+
+	// fingerprint of the chunk data last written by ChunkSaveQueue, or 0 if
+	// unknown. see ChunkFingerprints.
+	public synchronized long getFingerprint(int x, int z)
+	{
+		return (this.fin != null) ? this.fingerprints.get(getChunkIndex(x, z)) : 0L;
+	}
+
+	public synchronized void setFingerprint(int x, int z, long fingerprint)
+	{
+		if (this.fin != null)
 		{
-			if (this.filledSectorArray.get(i))
-			{
-				overlaps = true;
-			}
+			this.fingerprints.set(getChunkIndex(x, z), fingerprint);
 		}
-		return overlaps;
 	}
 
-	private Section getFreeSection(int requiredLength)
+	private File getJournalFile()
 	{
-		int start = 0;
-		int length = 0;
-		int closestStart = 0;
-		int closestLength = Integer.MAX_VALUE;
-		// start at 2 to skip headers
-		int i;
-		for (i = 2; i < this.filledSectorArray.size(); i++)
+		return new File(this.file.getPath() + ".journal");
+	}
+
+	private byte[] getHeader()
+	{
+		return this.getHeader(this.chunkSectionsArray);
+	}
+
+	private byte[] getHeader(Section[] sections)
+	{
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+		for (int i = 0; i < 1024; i++)
+		{
+			Section section = sections[i];
+			buf.putInt(((section != null) && (section.length > 0)) ? section.getSectorAndSize() : 0);
+		}
+		for (int i = 0; i < 1024; i++)
+		{
+			buf.putInt(this.timestampArray[i]);
+		}
+		return buf.array();
+	}
+
+	// read the header as it is in the file
+	private byte[] readHeader() throws IOException
+	{
+		byte[] header = new byte[HEADER_SIZE];
+		if (this.fin.length() >= HEADER_SIZE)
 		{
-			if (this.filledSectorArray.get(i))
+			this.fin.seek(0);
+			this.fin.readFully(header);
+		}
+		return header;
+	}
+
+	private static int getChecksum(byte[] header)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(header, 0, header.length);
+		return (int) crc.getValue();
+	}
+
+	// the journal holds a complete copy of the header that is about to be
+	// written. if the game crashes while the header is being written the
+	// journal is replayed the next time the file is opened.
+	private void writeJournal(File journalFile, byte[] header) throws IOException
+	{
+		RandomAccessFile journal = new RandomAccessFile(journalFile, "rw");
+		try
+		{
+			journal.setLength(0);
+			journal.writeInt(JOURNAL_MAGIC);
+			journal.write(header);
+			journal.writeInt(getChecksum(header));
+			journal.getFD().sync();
+		}
+		finally
+		{
+			journal.close();
+		}
+	}
+
+	// copy the header from a complete journal to the region file. incomplete
+	// journals are discarded, as the header in the file was not touched
+	// before the journal was finished.
+	private void replayJournal() throws IOException
+	{
+		File journalFile = this.getJournalFile();
+		if (!journalFile.isFile())
+		{
+			return;
+		}
+		byte[] header = null;
+		RandomAccessFile journal = new RandomAccessFile(journalFile, "r");
+		try
+		{
+			if ((journal.length() == (HEADER_SIZE + 8)) && (journal.readInt() == JOURNAL_MAGIC))
 			{
-				// sector filled
-				// if the length of the empty block we found is greater than or
-				// equal to the required length, and is closer to the required
-				// length than the previous found length, then set this as the
-				// new closest length.
-				// the idea is to use an empty block of exactly the required
-				// length, rather than one that is larger.
-				if ((length >= requiredLength) && (length < closestLength))
+				header = new byte[HEADER_SIZE];
+				journal.readFully(header);
+				if (journal.readInt() != getChecksum(header))
 				{
-					closestLength = length;
-					closestStart = start;
-					// if we find an empty block of exactly the correct length
-					// then exit the loop.
-					if (closestLength == requiredLength)
-					{
-						break;
-					}
+					header = null;
 				}
-				length = 0;
 			}
-			else
+		}
+		finally
+		{
+			journal.close();
+		}
+		if (header != null)
+		{
+			Logging.logWarning("restoring header of region file %s from journal", this.file);
+			this.fin.seek(0);
+			this.fin.write(header);
+			this.fin.getChannel().force(false);
+		}
+		if (!journalFile.delete())
+		{
+			Logging.logError("could not delete journal file %s", journalFile);
+		}
+	}
+
+	// flush the header if it has not been written for a while. used at the
+	// end of a batch of writes, so that a steady trickle of chunk saves does
+	// not cause a header write (and disk sync) for every chunk.
+	public synchronized boolean flushIfDue()
+	{
+		boolean error = false;
+		if ((System.currentTimeMillis() - this.lastFlushTime) >= FLUSH_INTERVAL_MS)
+		{
+			error = this.flush();
+		}
+		return error;
+	}
+
+	// write the location and timestamp tables to the file if any chunks have
+	// been written since the last flush.
+	public synchronized boolean flush()
+	{
+		boolean error = false;
+		if ((this.fin != null) && !this.dirtySlots.isEmpty())
+		{
+			try
 			{
-				// sector empty
-				if (length == 0)
+				// make sure the chunk data is on disk before any header
+				// refers to it
+				this.fin.getChannel().force(false);
+
+				byte[] header = this.getHeader();
+				File journalFile = this.getJournalFile();
+				this.writeJournal(journalFile, header);
+
+				this.fin.seek(0);
+				this.fin.write(header);
+				this.fin.getChannel().force(false);
+
+				if (!journalFile.delete())
+				{
+					Logging.logError("could not delete journal file %s", journalFile);
+				}
+				this.fingerprints.save(getChecksum(header));
+
+				this.dirtySlots.clear();
+				this.lastFlushTime = System.currentTimeMillis();
+				for (Section section : this.pendingFreeSections)
 				{
-					start = i;
+					this.setFilledSectors(section, false);
 				}
-				length++;
+				this.pendingFreeSections.clear();
+			}
+			catch (IOException e)
+			{
+				Logging.logError("could not write header of region file %s: %s", this.file, e);
+				error = true;
 			}
 		}
+		return error;
+	}
 
-		if (closestStart <= 0)
+	// compact the file if at least MIN_COMPACT_FREE_SECTORS sectors and the
+	// configured percentage of the sectors in the file are free.
+	public synchronized boolean compactIfFragmented()
+	{
+		boolean error = false;
+		if ((this.fin != null) && (Config.regionFileCompactThreshold > 0))
 		{
-			// append to end of file
-			closestStart = i;
+			int freeCount = this.getFreeSectorCount();
+			int totalCount = freeCount + this.getFilledSectorCount();
+			if ((freeCount >= MIN_COMPACT_FREE_SECTORS) && ((freeCount * 100L) >= (Config.regionFileCompactThreshold * (long) totalCount)))
+			{
+				error = this.compact();
+			}
 		}
+		return error;
+	}
 
-		return new Section(closestStart, requiredLength);
+	private File getCompactFile()
+	{
+		return new File(this.file.getPath() + ".compact");
 	}
 
-	public void printInfo()
+	// copy the first 'length' bytes of a complete compacted copy over the
+	// start of the region file and cut off the rest. the region file is
+	// written through the open channel rather than replaced, as a file that
+	// is still mapped can not be replaced or truncated on some systems.
+	private void copyCompactedFile(RandomAccessFile compacted, long length) throws IOException
 	{
-		int freeCount = 0;
-		int filledCount = 0;
-		// start at 2 to skip headers
-		for (int i = 2; i < this.filledSectorArray.size(); i++)
+		FileChannel in = compacted.getChannel();
+		FileChannel out = this.fin.getChannel();
+		out.position(0);
+		long position = 0;
+		while (position < length)
 		{
-			if (this.filledSectorArray.get(i))
+			position += in.transferTo(position, length - position, out);
+		}
+		out.force(false);
+		try
+		{
+			this.fin.setLength(length);
+		}
+		catch (IOException e)
+		{
+			// the sectors past the last chunk are not used, and are
+			// overwritten by the next chunks appended to the file
+			Logging.logWarning("could not truncate region file %s to %d bytes: %s", this.file, length, e);
+		}
+	}
+
+	// finish a compaction that was interrupted while the compacted copy was
+	// being written back. incomplete copies are discarded, as the region
+	// file was not touched before the copy was finished.
+	private void replayCompaction() throws IOException
+	{
+		File compactFile = this.getCompactFile();
+		if (!compactFile.isFile())
+		{
+			return;
+		}
+		RandomAccessFile compacted = new RandomAccessFile(compactFile, "r");
+		try
+		{
+			long length = compacted.length() - 4;
+			if ((length >= HEADER_SIZE) && ((length % 4096) == 0))
 			{
-				filledCount++;
+				compacted.seek(length);
+				if (compacted.readInt() == COMPACT_MAGIC)
+				{
+					Logging.logWarning("finishing compaction of region file %s", this.file);
+					this.copyCompactedFile(compacted, length);
+				}
 			}
-			else
+		}
+		finally
+		{
+			compacted.close();
+		}
+		if (!compactFile.delete())
+		{
+			Logging.logError("could not delete compacted region file %s", compactFile);
+		}
+	}
+
+	// rewrite the file with all chunks stored contiguously in chunk index
+	// order and no free sectors. the compacted copy is written next to the
+	// file and marked complete, then copied back over the file. a crash or
+	// error while copying it back leaves the copy in place, and it is copied
+	// again when the file is next opened.
+	public synchronized boolean compact()
+	{
+		if ((this.fin == null) || this.flush())
+		{
+			return true;
+		}
+
+		long sizeBefore = this.file.length();
+		int freeBefore = this.getFreeSectorCount();
+		File compactFile = this.getCompactFile();
+		Section[] newSections = new Section[1024];
+		long[] fingerprints = this.fingerprints.copy();
+		long length = 0;
+		RandomAccessFile compacted = null;
+		try
+		{
+			compacted = new RandomAccessFile(compactFile, "rw");
+			compacted.setLength(0);
+			compacted.write(new byte[HEADER_SIZE]);
+
+			int nextSector = 2;
+			for (int i = 0; i < 1024; i++)
 			{
-				freeCount++;
+				Section section = this.chunkSectionsArray[i];
+				if ((section == null) || (section.length <= 0))
+				{
+					continue;
+				}
+				this.fin.seek(section.startSector * 4096L);
+				int chunkLength = this.fin.readInt();
+				if ((chunkLength <= 1) || ((chunkLength + 4) > (section.length * 4096)))
+				{
+					Logging.logWarning("dropping chunk %d with invalid length %d while compacting %s", i, chunkLength, this);
+					fingerprints[i] = 0L;
+					continue;
+				}
+				// copy the length, version and compressed data, padded to a
+				// whole number of sectors
+				int sectors = (chunkLength + 4 + 4095) / 4096;
+				byte[] data = ChunkBuffers.get().getCompressedBuffer(sectors * 4096);
+				this.fin.seek(section.startSector * 4096L);
+				this.fin.readFully(data, 0, chunkLength + 4);
+				Arrays.fill(data, chunkLength + 4, sectors * 4096, (byte) 0);
+				compacted.write(data, 0, sectors * 4096);
+
+				newSections[i] = new Section(nextSector, sectors);
+				nextSector += sectors;
 			}
+			length = nextSector * 4096L;
+
+			compacted.seek(0);
+			compacted.write(this.getHeader(newSections));
+			compacted.getFD().sync();
+			// only a copy ending with the marker is copied back by open
+			compacted.seek(length);
+			compacted.writeInt(COMPACT_MAGIC);
+			compacted.getFD().sync();
+		}
+		catch (IOException e)
+		{
+			Logging.logError("could not compact region file %s: %s", this, e);
+			length = 0;
 		}
-		Logging.logInfo("Region File %s: filled sectors = %d, free sectors = %d", this, filledCount, freeCount);
 
-		String s = "";
-		int i;
-		for (i = 0; i < this.filledSectorArray.size(); i++)
+		boolean error = true;
+		if (length > 0)
 		{
-			if ((i & 31) == 0)
+			try
 			{
-				s = String.format("%04x:", i);
+				this.copyCompactedFile(compacted, length);
+				error = false;
 			}
-			s += this.filledSectorArray.get(i) ? '1' : '0';
-			if ((i & 31) == 31)
+			catch (IOException e)
 			{
-				Logging.logInfo("%s", s);
+				Logging.logError("could not write compacted data to region file %s, it will be copied again from %s when the file is opened: %s", this, compactFile, e);
 			}
 		}
-		if ((i & 31) != 31)
+		if (compacted != null)
 		{
-			Logging.logInfo("%s", s);
+			try
+			{
+				compacted.close();
+			}
+			catch (IOException e)
+			{
+			}
+		}
+		if ((length == 0) || !error)
+		{
+			// either the region file is untouched or it holds the whole copy
+			if (!compactFile.delete())
+			{
+				Logging.logError("could not delete compacted region file %s", compactFile);
+			}
 		}
-	}
-
-	private Section getChunkSection(int x, int z)
-	{
-		return this.chunkSectionsArray[((z & 31) << 5) | (x & 31)];
-	}
 
-	private void updateChunkSection(int x, int z, Section newSection) throws IOException
-	{
-		int chunkIndex = ((z & 31) << 5) | (x & 31);
-		this.fin.seek(chunkIndex * 4);
-		if ((newSection != null) && (newSection.length > 0))
+		// reload the header, or retry the copy if it failed part way
+		if (length > 0)
 		{
-			this.fin.writeInt(newSection.getSectorAndSize());
+			this.closeFile();
+			this.open();
 		}
-		else
+		if (!error && (this.fin != null))
 		{
-			this.fin.writeInt(0);
+			// the fingerprints still match the moved chunks, save them
+			// against the new header
+			this.fingerprints.restore(fingerprints);
+			this.fingerprints.save(getChecksum(this.getHeader()));
 		}
-
-		this.chunkSectionsArray[chunkIndex] = newSection;
+		if (!error)
+		{
+			Logging.logInfo("compacted region file %s: size %d -> %d bytes, free sectors %d -> %d", this, sizeBefore, this.file.length(), freeBefore, this.getFreeSectorCount());
+		}
+		return error;
 	}
 
-	public boolean open()
+	public synchronized boolean open()
 	{
 		File dir = this.file.getParentFile();
 		if (dir.exists())
@@ -246,13 +608,23 @@ public class RegionFile
 		try
 		{
 			this.fin = new RandomAccessFile(this.file, "rw");
+			this.mappedReads = Config.regionFileMappedReads;
+			this.mappedBuffer = null;
+			this.dirtySlots.clear();
+			this.pendingFreeSections.clear();
+
+			this.replayCompaction();
+			this.replayJournal();
+			this.fingerprints.load(getChecksum(this.readHeader()));
 
 			// seek to start
 			this.fin.seek(0);
 
 			this.lengthInSectors = (int) ((this.fin.length() + 4095L) / 4096L);
 
-			this.filledSectorArray = new ArrayList<Boolean>();
+			this.sectorMap = new RegionFileSectorMap();
+			// the location and timestamp tables
+			this.sectorMap.set(0, 2, true);
 
 			Arrays.fill(this.chunkSectionsArray, null);
 			Arrays.fill(this.timestampArray, 0);
@@ -278,7 +650,7 @@ public class RegionFile
 						if (!this.checkSectionOverlaps(section))
 						{
 							this.chunkSectionsArray[i] = section;
-							this.setFilledSectorArray(section, true);
+							this.setFilledSectors(section, true);
 						}
 						else
 						{
@@ -305,8 +677,15 @@ public class RegionFile
 		return this.fin == null;
 	}
 
-	public void close()
+	public synchronized void close()
 	{
+		this.flush();
+		this.closeFile();
+	}
+
+	private void closeFile()
+	{
+		this.mappedBuffer = null;
 		if (this.fin != null)
 		{
 			try
@@ -316,10 +695,87 @@ public class RegionFile
 			catch (IOException e)
 			{
 			}
+			this.fin = null;
 		}
 	}
 
-	public DataInputStream getChunkDataInputStream(int x, int z)
+	// returns a mapping of the file that covers at least the first 'length'
+	// bytes. the whole file is mapped, so the mapping is only replaced when the
+	// file has grown past the end of the current one.
+	private MappedByteBuffer getMappedBuffer(long length) throws IOException
+	{
+		if ((this.mappedBuffer == null) || (this.mappedBuffer.capacity() < length))
+		{
+			FileChannel channel = this.fin.getChannel();
+			long fileLength = channel.size();
+			if (fileLength < length)
+			{
+				throw new IOException(String.format("section ends at %d, past end of file (%d)", length, fileLength));
+			}
+			if (fileLength > Integer.MAX_VALUE)
+			{
+				throw new IOException(String.format("file too large to map (%d bytes)", fileLength));
+			}
+			this.mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
+		}
+		return this.mappedBuffer;
+	}
+
+	// get the compressed data of the chunk in 'section' as the bytes between
+	// the position and limit of the returned buffer. with mapped reads the
+	// buffer is a view of the mapping and nothing is copied, otherwise the
+	// data is read into the compressed buffer of 'buffers'. returns null if
+	// the length or version in the chunk header is invalid. the compression
+	// version is stored in version[0].
+	private ByteBuffer readCompressedChunkData(Section section, ChunkBuffers buffers, int x, int z, int[] versionOut) throws IOException
+	{
+		long offset = section.startSector * 4096L;
+		ByteBuffer mapping = null;
+		int length;
+		byte version;
+		// read length of following data (includes version byte) and
+		// compressed data version byte
+		if (this.mappedReads)
+		{
+			mapping = this.getMappedBuffer(offset + 5).duplicate();
+			length = mapping.getInt((int) offset);
+			version = mapping.get((int) offset + 4);
+		}
+		else
+		{
+			this.fin.seek(offset);
+			length = this.fin.readInt();
+			version = this.fin.readByte();
+		}
+
+		// version 1 = gzip compressed, version 2 = zlib/inflater compressed,
+		// see ChunkCompression for the others
+		if ((length <= 1) || ((length + 4) > (section.length * 4096)) || (ChunkCompression.fromVersion(version) == null))
+		{
+			Logging.logError("data length (%d) or version (%d) invalid for chunk (%d, %d)", length, version, x, z);
+			return null;
+		}
+
+		ByteBuffer data;
+		if (this.mappedReads)
+		{
+			data = this.getMappedBuffer(offset + 4 + length).duplicate();
+			data.limit((int) offset + 4 + length);
+			data.position((int) offset + 5);
+		}
+		else
+		{
+			byte[] compressedChunkData = buffers.getCompressedBuffer(length - 1);
+			this.fin.readFully(compressedChunkData, 0, length - 1);
+			data = ByteBuffer.wrap(compressedChunkData, 0, length - 1);
+		}
+		versionOut[0] = version;
+		return data;
+	}
+
+	// the returned stream reads from a per thread buffer, so it is only valid
+	// until the next call to getChunkDataInputStream from the same thread.
+	public synchronized DataInputStream getChunkDataInputStream(int x, int z)
 	{
 		DataInputStream dis = null;
 		if (this.fin != null)
@@ -327,28 +783,16 @@ public class RegionFile
 			Section section = this.getChunkSection(x, z);
 			if ((section != null) && (section.length > 0))
 			{
-				int offset = section.startSector * 4096;
 				try
 				{
-					// read length of following data (includes version byte) and
-					// compressed data version byte
-					this.fin.seek(offset);
-					int length = this.fin.readInt();
-					byte version = this.fin.readByte();
-					// version 1 = gzip compressed, version 2 = zlib/inflater
-					// compressed
-					if ((length > 1) && ((length + 4) < (section.length * 4096)) && (version == 2))
-					{
-						// read the compressed data
-						byte[] compressedChunkData = new byte[length - 1];
-						this.fin.read(compressedChunkData);
-						// create a buffered inflater stream on the compressed
-						// data
-						dis = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(compressedChunkData))));
-					}
-					else
+					ChunkBuffers buffers = ChunkBuffers.get();
+					int[] version = new int[1];
+					ByteBuffer data = this.readCompressedChunkData(section, buffers, x, z, version);
+					if (data != null)
 					{
-						Logging.logError("data length (%d) or version (%d) invalid for chunk (%d, %d)", length, version, x, z);
+						// decompressed while the file is locked, the stream
+						// does not read from the mapping
+						dis = buffers.getDecompressedStream(version[0], data);
 					}
 				}
 				catch (Exception e)
@@ -361,32 +805,50 @@ public class RegionFile
 		return dis;
 	}
 
-	// basically an in memory byte array that writes its contents
-	// to a file when it is closed.
-	private class RegionFileChunkBuffer extends ByteArrayOutputStream
+	// collects the uncompressed chunk data in the per thread buffers and
+	// compresses it and writes it to the file when it is closed.
+	private class RegionFileChunkBuffer extends OutputStream
 	{
 		private final int x;
 		private final int z;
-		private final RegionFile regionFile;
+		private final ChunkBuffers buffers;
+		private final ChunkBuffers.ScratchOutputStream buffer;
 
-		public RegionFileChunkBuffer(RegionFile regionFile, int x, int z)
+		public RegionFileChunkBuffer(int x, int z, ChunkBuffers buffers)
 		{
-			super(8096);
-			this.regionFile = regionFile;
 			this.x = x;
 			this.z = z;
+			this.buffers = buffers;
+			this.buffer = buffers.uncompressedBuffer;
+			this.buffer.reset();
+		}
+
+		@Override
+		public void write(int b)
+		{
+			this.buffer.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			this.buffer.write(b, off, len);
 		}
 
 		@Override
 		public void close()
 		{
-			this.regionFile.writeCompressedChunk(this.x, this.z, this.buf, this.count);
+			this.buffers.compress(0);
+			ChunkBuffers.ScratchOutputStream out = this.buffers.outputBuffer;
+			RegionFile.this.writeCompressedChunk(this.x, this.z, out.getBuffer(), out.size());
 		}
 	}
 
+	// uses the per thread buffers, so only one output stream can be open at
+	// a time in each thread.
 	public DataOutputStream getChunkDataOutputStream(int x, int z)
 	{
-		return new DataOutputStream(new DeflaterOutputStream(new RegionFileChunkBuffer(this, x, z)));
+		return new DataOutputStream(new RegionFileChunkBuffer(x, z, ChunkBuffers.get()));
 	}
 
 	/*
@@ -397,14 +859,12 @@ public class RegionFile
 	 * this.length = paddedLength; return (int) (paddedLength / 4096); }
 	 */
 
-	private void writeChunkDataToSection(Section section, byte[] compressedChunkData, int length) throws IOException
+	private void writeChunkDataToSection(Section section, byte[] chunkData, int length) throws IOException
 	{
 		this.fin.seek((section.startSector) * 4096L);
-		// write version and length
-		this.fin.writeInt(length + 1);
-		this.fin.writeByte(2);
-		// write compressed data
-		this.fin.write(compressedChunkData, 0, length);
+		// write length, then the version and compressed data
+		this.fin.writeInt(length);
+		this.fin.write(chunkData, 0, length);
 
 		int endSector = section.startSector + section.length;
 		if ((endSector + 1) > this.lengthInSectors)
@@ -413,7 +873,20 @@ public class RegionFile
 		}
 	}
 
-	private boolean writeCompressedChunk(int x, int z, byte[] compressedChunkData, int length)
+	// write already compressed chunk data, opening the file if needed.
+	// 'chunkData' is the compression version byte followed by the compressed
+	// data, as produced by ChunkBuffers.compress.
+	// returns true on error.
+	public synchronized boolean writeChunk(int x, int z, byte[] compressedChunkData, int length)
+	{
+		if (!this.isOpen() && this.open())
+		{
+			return true;
+		}
+		return this.writeCompressedChunk(x, z, compressedChunkData, length);
+	}
+
+	private synchronized boolean writeCompressedChunk(int x, int z, byte[] compressedChunkData, int length)
 	{
 		// if larger than the existing chunk data or chunk does not exist then
 		// need to find the
@@ -422,23 +895,38 @@ public class RegionFile
 		// free sectors longer than the length of the chunk data, or the end of
 		// the file (append).
 
-		if (length <= 0)
+		if (length <= 1)
 		{
 			Logging.logWarning("not writing chunk (%d, %d) with length %d", x, z, length);
 			return true;
 		}
 
-		// free the section this chunk currently occupies
+		// the chunk data no longer matches its fingerprint until the writer
+		// sets a new one
+		this.fingerprints.set(getChunkIndex(x, z), 0L);
+
+		// free the section this chunk currently occupies.
+		// if the header in the file still points at it then it can not be
+		// overwritten until the next flush.
 		Section currentSection = this.getChunkSection(x, z);
+		boolean currentSectionWritable = false;
 		if (currentSection != null)
 		{
-			this.setFilledSectorArray(currentSection, false);
+			if (this.dirtySlots.get(getChunkIndex(x, z)))
+			{
+				this.setFilledSectors(currentSection, false);
+				currentSectionWritable = true;
+			}
+			else
+			{
+				this.pendingFreeSections.add(currentSection);
+			}
 		}
 
-		int requiredSectors = (length + 5 + 4095) / 4096;
+		int requiredSectors = (length + 4 + 4095) / 4096;
 		Section newSection;
 
-		if ((currentSection != null) && (requiredSectors <= currentSection.length))
+		if (currentSectionWritable && (requiredSectors <= currentSection.length))
 		{
 			// if the chunk still fits in it's current location don't move
 			// RegionManager.logInfo("chunk (%d, %d) fits in current location %d",
@@ -452,7 +940,7 @@ public class RegionFile
 		}
 
 		// set the new section to filled
-		this.setFilledSectorArray(newSection, true);
+		this.setFilledSectors(newSection, true);
 
 		boolean error = true;
 		try
@@ -460,7 +948,7 @@ public class RegionFile
 			// RegionManager.logInfo("writing %d bytes to sector %d for chunk (%d,  %d)",
 			// length, newSection.startSector, x, z);
 			this.writeChunkDataToSection(newSection, compressedChunkData, length);
-			// update the header
+			// update the header in memory
 			this.updateChunkSection(x, z, newSection);
 			error = false;
 		}
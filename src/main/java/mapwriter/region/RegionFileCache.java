@@ -1,55 +1,73 @@
 package mapwriter.region;
 
 import java.io.File;
-import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import mapwriter.config.Config;
+import mapwriter.util.Logging;
+
+/*
+ * Cache of open region files, keyed by the dimension and region coordinates
+ * packed into a long so that finding the region file for a chunk does not
+ * build a path. Shared by the render thread, the rebuild task and the chunk
+ * save threads.
+ *
+ * Looking up a region file does not take a lock. A region file is pinned
+ * while it is in use by incrementing its pin count, and the cache only
+ * evicts files whose pin count it can change from 0 to -1, so a file can
+ * never be closed while it is pinned. Evicted files are closed, which may
+ * write their header, while holding the lock of the file and before they
+ * are removed from the map, so a thread that finds an evicted file waits
+ * for it to be closed before opening the file again.
+ */
 public class RegionFileCache
 {
-
-	// simple Least Recently Used (LRU) cache implementation
-	class LruCache extends LinkedHashMap<String, RegionFile>
-	{
-		private static final long serialVersionUID = 1L;
-		static final int MAX_REGION_FILES_OPEN = 8;
-
-		public LruCache()
-		{
-			// initial capacity, loading factor, true for access time ordering
-			super(MAX_REGION_FILES_OPEN * 2, 0.5f, true);
-		}
-
-		// called on every put and putAll call, the entry 'entry' is removed
-		// if this function returns true.
-		@Override
-		protected boolean removeEldestEntry(Map.Entry<String, RegionFile> entry)
-		{
-			boolean ret = false;
-			if (this.size() > MAX_REGION_FILES_OPEN)
-			{
-				RegionFile regionFile = entry.getValue();
-				regionFile.close();
-				ret = true;
-			}
-			return ret;
-		}
-	}
-
-	private LruCache regionFileCache = new LruCache();
+	private final ConcurrentHashMap<Long, RegionFile> regionFiles = new ConcurrentHashMap<Long, RegionFile>();
 	private File worldDir;
 
+	// incremented each time a region file is acquired, used to find the
+	// least recently used files
+	private final AtomicLong useCounter = new AtomicLong();
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
 	public RegionFileCache(File worldDir)
 	{
 		this.worldDir = worldDir;
 	}
 
+	// pack the dimension and the region coordinates of the block (x, z)
+	// into a key. region coordinates are limited to 20 bits, enough for a
+	// 30 million block world border.
+	public static long getKey(int x, int z, int dimension)
+	{
+		long rx = (x >> Region.SHIFT) & 0xfffffL;
+		long rz = (z >> Region.SHIFT) & 0xfffffL;
+		return (((long) dimension) << 40) | (rz << 20) | rx;
+	}
+
+	// close all region files. must not be called while other threads are
+	// using the cache.
 	public void close()
 	{
-		for (RegionFile regionFile : this.regionFileCache.values())
+		Logging.logInfo("region file cache: %s", this.getStats());
+		for (RegionFile regionFile : this.regionFiles.values())
 		{
 			regionFile.close();
 		}
-		this.regionFileCache.clear();
+		this.regionFiles.clear();
+	}
+
+	// write the headers of all open region files
+	public void flush()
+	{
+		for (RegionFile regionFile : this.regionFiles.values())
+		{
+			regionFile.flush();
+		}
 	}
 
 	public File getRegionFilePath(int x, int z, int dimension)
@@ -68,20 +86,162 @@ public class RegionFileCache
 
 	public boolean regionFileExists(int x, int z, int dimension)
 	{
+		RegionFile regionFile = this.regionFiles.get(getKey(x, z, dimension));
+		if ((regionFile != null) && regionFile.isOpen())
+		{
+			return true;
+		}
 		File regionFilePath = this.getRegionFilePath(x, z, dimension);
 		return regionFilePath.isFile();
 	}
 
-	public RegionFile getRegionFile(int x, int z, int dimension)
+	private static boolean pin(RegionFile regionFile)
 	{
-		File regionFilePath = this.getRegionFilePath(x, z, dimension);
-		String key = regionFilePath.toString();
-		RegionFile regionFile = this.regionFileCache.get(key);
-		if (regionFile == null)
+		while (true)
 		{
-			regionFile = new RegionFile(regionFilePath);
-			this.regionFileCache.put(key, regionFile);
+			int count = regionFile.pinCount.get();
+			if (count < 0)
+			{
+				return false;
+			}
+			if (regionFile.pinCount.compareAndSet(count, count + 1))
+			{
+				return true;
+			}
 		}
+	}
+
+	// close and remove the least recently used region files until the cache
+	// is within its size limit.
+	// region files that are in use by another thread are not removed, the
+	// cache is allowed to grow past the limit until they are released.
+	private void trim()
+	{
+		int excess = this.regionFiles.size() - Math.max(1, Config.regionFileCacheSize);
+		while (excess > 0)
+		{
+			Map.Entry<Long, RegionFile> oldest = null;
+			long oldestUse = Long.MAX_VALUE;
+			for (Map.Entry<Long, RegionFile> entry : this.regionFiles.entrySet())
+			{
+				RegionFile regionFile = entry.getValue();
+				long lastUse = regionFile.lastUse;
+				if ((regionFile.pinCount.get() == 0) && (lastUse < oldestUse))
+				{
+					oldest = entry;
+					oldestUse = lastUse;
+				}
+			}
+			if (oldest == null)
+			{
+				break;
+			}
+			RegionFile regionFile = oldest.getValue();
+			boolean evicted = false;
+			synchronized (regionFile)
+			{
+				if (regionFile.pinCount.compareAndSet(0, -1))
+				{
+					regionFile.close();
+					evicted = true;
+				}
+			}
+			if (evicted)
+			{
+				// only remove the entry if it has not already been replaced
+				// by a new instance of the file
+				this.regionFiles.remove(oldest.getKey(), regionFile);
+				this.evictionCount.incrementAndGet();
+				excess--;
+			}
+		}
+	}
+
+	// get a region file without pinning it. the file may be closed by
+	// another thread at any time, use acquireRegionFile instead when the
+	// cache is shared.
+	public RegionFile getRegionFile(int x, int z, int dimension)
+	{
+		RegionFile regionFile = this.acquireRegionFile(x, z, dimension);
+		this.releaseRegionFile(regionFile);
 		return regionFile;
 	}
+
+	// get a region file and keep it from being closed by the cache until
+	// releaseRegionFile is called. must be used instead of getRegionFile
+	// when the file is accessed from more than one thread.
+	public RegionFile acquireRegionFile(int x, int z, int dimension)
+	{
+		Long key = getKey(x, z, dimension);
+		while (true)
+		{
+			boolean miss = false;
+			RegionFile regionFile = this.regionFiles.get(key);
+			if (regionFile == null)
+			{
+				RegionFile newRegionFile = new RegionFile(this.getRegionFilePath(x, z, dimension));
+				regionFile = this.regionFiles.putIfAbsent(key, newRegionFile);
+				if (regionFile == null)
+				{
+					regionFile = newRegionFile;
+					miss = true;
+				}
+			}
+			if (pin(regionFile))
+			{
+				regionFile.lastUse = this.useCounter.incrementAndGet();
+				if (miss)
+				{
+					this.missCount.incrementAndGet();
+					this.trim();
+				}
+				else
+				{
+					this.hitCount.incrementAndGet();
+				}
+				return regionFile;
+			}
+			// the file is being evicted. wait until it has been closed before
+			// a new instance opens the same file.
+			synchronized (regionFile)
+			{
+				this.regionFiles.remove(key, regionFile);
+			}
+		}
+	}
+
+	// must not be called while holding the lock of a region file, as
+	// evicting another file takes its lock
+	public void releaseRegionFile(RegionFile regionFile)
+	{
+		// files that were pinned when the cache was last trimmed can be
+		// evicted now
+		if ((regionFile.pinCount.decrementAndGet() == 0) && (this.regionFiles.size() > Math.max(1, Config.regionFileCacheSize)))
+		{
+			this.trim();
+		}
+	}
+
+	public long getHitCount()
+	{
+		return this.hitCount.get();
+	}
+
+	public long getMissCount()
+	{
+		return this.missCount.get();
+	}
+
+	public long getEvictionCount()
+	{
+		return this.evictionCount.get();
+	}
+
+	public String getStats()
+	{
+		long hits = this.hitCount.get();
+		long misses = this.missCount.get();
+		long total = hits + misses;
+		return String.format("%d open, %d hits, %d misses (%.1f%% hit rate), %d evictions", this.regionFiles.size(), hits, misses, (total > 0) ? ((hits * 100.0) / total) : 0.0, this.evictionCount.get());
+	}
 }
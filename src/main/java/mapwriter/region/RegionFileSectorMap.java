@@ -0,0 +1,152 @@
+package mapwriter.region;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/*
+ * Tracks which 4096 byte sectors of a region file are in use.
+ *
+ * Filled sectors are stored in a bitmap. Runs of free sectors that lie
+ * between filled sectors are indexed both by start sector and by
+ * (length, start) so that the smallest free run that can hold a chunk is
+ * found in logarithmic time. Free sectors after the last filled sector are
+ * not indexed, a section that does not fit in any free run is appended
+ * there instead.
+ */
+public class RegionFileSectorMap
+{
+	private final BitSet filled = new BitSet();
+
+	// index of the first sector after the last filled sector
+	private int end = 0;
+
+	// start sector -> length of every free run before 'end'
+	private final TreeMap<Integer, Integer> runsByStart = new TreeMap<Integer, Integer>();
+
+	// free runs keyed by (length << 32) | start, smallest length first
+	private final TreeSet<Long> runsByLength = new TreeSet<Long>();
+
+	private static long getRunKey(int start, int length)
+	{
+		return (((long) length) << 32) | (start & 0xffffffffL);
+	}
+
+	private void addRun(int start, int length)
+	{
+		this.runsByStart.put(start, length);
+		this.runsByLength.add(getRunKey(start, length));
+	}
+
+	private void removeRun(int start, int length)
+	{
+		this.runsByStart.remove(start);
+		this.runsByLength.remove(getRunKey(start, length));
+	}
+
+	// the number of sectors up to and including the last filled sector
+	public int getLength()
+	{
+		return this.end;
+	}
+
+	public boolean isFilled(int sector)
+	{
+		return this.filled.get(sector);
+	}
+
+	// returns true if any of the 'length' sectors starting at 'start' are
+	// filled.
+	public boolean isAnyFilled(int start, int length)
+	{
+		int next = this.filled.nextSetBit(start);
+		return (next >= 0) && (next < (start + length));
+	}
+
+	public int getFilledCount(int start, int end)
+	{
+		return (start < end) ? this.filled.get(start, end).cardinality() : 0;
+	}
+
+	// returns the first sector of the smallest run of free sectors that is at
+	// least 'length' sectors long, or the end of the filled sectors if there
+	// is no such run.
+	public int getFreeSection(int length)
+	{
+		Long key = this.runsByLength.ceiling(getRunKey(0, length));
+		return (key != null) ? (int) (key & 0xffffffffL) : this.end;
+	}
+
+	// set 'length' sectors starting at 'start' to filled or free and update
+	// the free run index for the affected area.
+	public void set(int start, int length, boolean filled)
+	{
+		if (length <= 0)
+		{
+			return;
+		}
+		int sectionEnd = start + length;
+
+		// remove the free runs that overlap or touch the section, they are
+		// rebuilt from the bitmap below.
+		int rescanStart = start;
+		int rescanEnd = sectionEnd;
+		List<Map.Entry<Integer, Integer>> runs = new ArrayList<Map.Entry<Integer, Integer>>();
+		Map.Entry<Integer, Integer> left = this.runsByStart.floorEntry(start);
+		if ((left != null) && ((left.getKey() + left.getValue()) >= start))
+		{
+			runs.add(left);
+		}
+		runs.addAll(this.runsByStart.subMap(start, false, sectionEnd, true).entrySet());
+		for (Map.Entry<Integer, Integer> run : runs)
+		{
+			rescanStart = Math.min(rescanStart, run.getKey());
+			rescanEnd = Math.max(rescanEnd, run.getKey() + run.getValue());
+		}
+		for (Map.Entry<Integer, Integer> run : runs)
+		{
+			this.removeRun(run.getKey(), run.getValue());
+		}
+
+		if (filled)
+		{
+			this.filled.set(start, sectionEnd);
+			if (sectionEnd > this.end)
+			{
+				// any gap between the old end and the section becomes a free
+				// run.
+				rescanStart = Math.min(rescanStart, this.end);
+				this.end = sectionEnd;
+			}
+		}
+		else
+		{
+			this.filled.clear(start, sectionEnd);
+			if (sectionEnd >= this.end)
+			{
+				this.end = this.filled.previousSetBit(sectionEnd - 1) + 1;
+			}
+		}
+
+		// every free run found here is bounded by filled sectors (or the
+		// start of the file), as the runs touching the section were included.
+		rescanEnd = Math.min(rescanEnd, this.end);
+		int i = this.filled.nextClearBit(rescanStart);
+		while (i < rescanEnd)
+		{
+			int runEnd = Math.min(this.filled.nextSetBit(i), rescanEnd);
+			if (runEnd < 0)
+			{
+				runEnd = rescanEnd;
+			}
+			if (runEnd < this.end)
+			{
+				this.addRun(i, runEnd - i);
+			}
+			i = this.filled.nextClearBit(runEnd);
+		}
+	}
+}
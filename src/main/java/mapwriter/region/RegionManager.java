@@ -2,78 +2,163 @@ package mapwriter.region;
 
 import java.io.File;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 
 import org.apache.logging.log4j.Logger;
 
+import mapwriter.config.Config;
 import mapwriter.util.Logging;
 
 public class RegionManager
 {
+	// loaded regions that have changed are queued to be saved at this
+	// interval, as otherwise they are only saved when they are evicted or
+	// the map is closed
+	private static final long FLUSH_INTERVAL_MS = 60000L;
 
-	// simple Least Recently Used (LRU) cache implementation
-	class LruCache extends LinkedHashMap<Long, Region>
-	{
-		private final static long serialVersionUID = 1L;
-		private final static int MAX_LOADED_REGIONS = 64;
-
-		public LruCache()
-		{
-			// initial capacity, loading factor, true for access time ordering
-			super(MAX_LOADED_REGIONS * 2, 0.5f, true);
-		}
-
-		// called on every put and putAll call, the entry 'entry' is removed
-		// if this function returns true.
-		@Override
-		protected boolean removeEldestEntry(Map.Entry<Long, Region> entry)
-		{
-			boolean ret = false;
-			if (this.size() > MAX_LOADED_REGIONS)
-			{
-				Region region = entry.getValue();
-				region.close();
-				ret = true;
-			}
-			return ret;
-		}
-	}
-
-	private final LruCache regionMap;
+	private final RegionCache regionMap;
+	// tile slab of each dimension and zoom level, opened when first used
+	private final Map<Integer, TileSlab> tileSlabs = new HashMap<Integer, TileSlab>();
 
 	public final File worldDir;
 	public final File imageDir;
 	public BlockColours blockColours;
 	public static Logger logger;
 	public final RegionFileCache regionFileCache;
+	public final ChunkSaveQueue chunkSaveQueue;
+	public final ChunkCache chunkCache;
+	public final TileSaveQueue tileSaveQueue;
+	final ZoomLevelUpdates zoomLevelUpdates;
 
 	public int maxZoom;
 	public int minZoom;
 
+	private volatile long lastFlushTime = System.currentTimeMillis();
+
 	public RegionManager(File worldDir, File imageDir, BlockColours blockColours, int minZoom, int maxZoom)
 	{
 		this.worldDir = worldDir;
 		this.imageDir = imageDir;
 		this.blockColours = blockColours;
-		this.regionMap = new LruCache();
+		this.regionMap = new RegionCache();
 		this.regionFileCache = new RegionFileCache(worldDir);
+		this.chunkCache = new ChunkCache();
+		this.chunkSaveQueue = new ChunkSaveQueue(this.regionFileCache, this.chunkCache);
+		this.tileSaveQueue = new TileSaveQueue();
+		this.zoomLevelUpdates = new ZoomLevelUpdates(this);
 		this.minZoom = minZoom;
 		this.maxZoom = maxZoom;
 	}
 
 	public void close()
 	{
-		for (Region region : this.regionMap.values())
+		// bring all zoom levels up to date before the regions are saved
+		this.zoomLevelUpdates.update(Integer.MAX_VALUE);
+		for (Region region : this.regionMap.getRegions())
 		{
-			if (region != null)
-			{
-				region.close();
-			}
+			region.close();
 		}
 		this.regionMap.clear();
+		// wait for the images of the closed regions to be saved
+		this.tileSaveQueue.close();
+		this.closeTileSlabs();
+		// wait for queued chunk saves before closing the region files
+		this.chunkSaveQueue.close();
 		this.regionFileCache.close();
+		this.chunkCache.clear();
+	}
+
+	// update the regions of the zoom levels below 'zoomLevel' within an area
+	// with the changes made to the levels below them, so that the regions
+	// at 'zoomLevel' are up to date. x, z, w, h in world block coordinates.
+	public void updateZoomLevels(int x, int z, int w, int h, int zoomLevel, int dimension)
+	{
+		this.zoomLevelUpdates.update(x, z, w, h, dimension, zoomLevel);
+	}
+
+	// update the zoom levels of at most 'budget' changed regions. returns
+	// the number of regions updated.
+	public int updateZoomLevels(int budget)
+	{
+		int processed = this.zoomLevelUpdates.update(budget);
+		// the regions of the higher zoom levels grow as pixels are scaled
+		// into them
+		this.regionMap.trim();
+		this.flushRegionsIfDue();
+		return processed;
+	}
+
+	// returns true if there are changes not yet scaled into the higher zoom
+	// levels. may be called from any thread.
+	public boolean hasZoomLevelUpdates()
+	{
+		return this.zoomLevelUpdates.getCount() > 0;
+	}
+
+	// returns true if the loaded regions are due to be flushed. may be
+	// called from any thread.
+	public boolean isFlushDue()
+	{
+		return (System.currentTimeMillis() - this.lastFlushTime) >= FLUSH_INTERVAL_MS;
+	}
+
+	// queue copies of the pixels and the render times of the loaded regions
+	// that have changed since they were last saved, so that they are not
+	// lost if the game exits without closing the map
+	public void flushRegions()
+	{
+		int count = 0;
+		for (Region region : this.regionMap.getRegions())
+		{
+			if (region.flush())
+			{
+				count++;
+			}
+		}
+		this.lastFlushTime = System.currentTimeMillis();
+		if (count > 0)
+		{
+			Logging.logInfo("queued %d changed regions to be saved", count);
+		}
+	}
+
+	private void flushRegionsIfDue()
+	{
+		if (this.isFlushDue())
+		{
+			this.flushRegions();
+		}
+	}
+
+	// returns null if region images are stored as separate tile files and
+	// there is no tile slab to read them from. a slab written while
+	// Config.tileSlabStore was set is still read after it is turned off, as
+	// the images converted into it have no other copy.
+	public synchronized TileSlab getTileSlab(int dimension, int zoomLevel)
+	{
+		Integer key = Integer.valueOf((dimension << 8) | (zoomLevel & 0xff));
+		TileSlab tileSlab = this.tileSlabs.get(key);
+		if (tileSlab == null)
+		{
+			File dir = Region.getZoomDir(this.imageDir, dimension, zoomLevel);
+			if (!Config.tileSlabStore && !new File(dir, TileSlab.SLAB_FILE).isFile())
+			{
+				return null;
+			}
+			tileSlab = new TileSlab(dir);
+			this.tileSlabs.put(key, tileSlab);
+		}
+		return tileSlab;
+	}
+
+	private synchronized void closeTileSlabs()
+	{
+		for (TileSlab tileSlab : this.tileSlabs.values())
+		{
+			tileSlab.close();
+		}
+		this.tileSlabs.clear();
 	}
 
 	private static int incrStatsCounter(Map<String, Integer> h, String key)
@@ -91,14 +176,14 @@ public class RegionManager
 	{
 		Logging.logInfo("loaded region listing:");
 		Map<String, Integer> stats = new HashMap<String, Integer>();
-		for (Region region : this.regionMap.values())
+		for (Region region : this.regionMap.getRegions())
 		{
 			Logging.logInfo("  %s", region);
 			incrStatsCounter(stats, String.format("dim%d", region.dimension));
 			incrStatsCounter(stats, String.format("zoom%d", region.zoomLevel));
 			incrStatsCounter(stats, "total");
 		}
-		Logging.logInfo("loaded region stats:");
+		Logging.logInfo("loaded region stats: %s", this.regionMap.getStats());
 		for (Entry<String, Integer> e : stats.entrySet())
 		{
 			Logging.logInfo("  %s: %d", e.getKey(), e.getValue());
@@ -113,18 +198,30 @@ public class RegionManager
 		{
 			// add region
 			region = new Region(this, x, z, zoomLevel, dimension);
-			this.regionMap.put(region.key, region);
+			this.regionMap.put(region);
 		}
 		return region;
 	}
 
-	public void updateChunk(MwChunk chunk)
+	// returns true if the pixels of the chunk changed
+	public boolean updateChunk(MwChunk chunk)
 	{
 		Region region = this.getRegion(chunk.x << 4, chunk.z << 4, 0, chunk.dimension);
-		region.updateChunk(chunk);
+		boolean changed = region.updateChunk(chunk);
+		this.regionMap.update(region);
+		this.flushRegionsIfDue();
+		return changed;
 	}
 
 	public void rebuildRegions(int xStart, int zStart, int w, int h, int dimension)
+	{
+		this.rebuildRegions(xStart, zStart, w, h, dimension, false);
+	}
+
+	// re-render regions from the chunks stored in the region files.
+	// an incremental rebuild only renders the chunks that have been saved
+	// since they were last rendered into the region image.
+	public void rebuildRegions(int xStart, int zStart, int w, int h, int dimension, boolean incremental)
 	{
 		// read all zoom level 0 regions
 		// then find all regions with a backing image at zoom level 0
@@ -134,28 +231,89 @@ public class RegionManager
 		w = (w + Region.SIZE) & Region.MASK;
 		h = (h + Region.SIZE) & Region.MASK;
 
-		Logging.logInfo("rebuilding regions from (%d, %d) to (%d, %d)", xStart, zStart, xStart + w, zStart + h);
+		Logging.logInfo("rebuilding regions from (%d, %d) to (%d, %d)%s", xStart, zStart, xStart + w, zStart + h, incremental ? " (incremental)" : "");
 
+		int renderedCount = 0;
+		int skippedCount = 0;
 		for (int rX = xStart; rX < (xStart + w); rX += Region.SIZE)
 		{
 			for (int rZ = zStart; rZ < (zStart + h); rZ += Region.SIZE)
 			{
 				Region region = this.getRegion(rX, rZ, 0, dimension);
+				int regionRenderedCount = 0;
 				if (this.regionFileCache.regionFileExists(rX, rZ, dimension))
 				{
-					region.clear();
-					for (int cz = 0; cz < 32; cz++)
+					if (!incremental)
+					{
+						region.clear();
+					}
+					RegionFile regionFile = this.regionFileCache.acquireRegionFile(rX, rZ, dimension);
+					try
 					{
-						for (int cx = 0; cx < 32; cx++)
+						for (int cz = 0; cz < 32; cz++)
 						{
-							// load chunk from anvil file
-							MwChunk chunk = MwChunk.read((region.x >> 4) + cx, (region.z >> 4) + cz, region.dimension, this.regionFileCache);
-							region.updateChunk(chunk);
+							for (int cx = 0; cx < 32; cx++)
+							{
+								int chunkX = (region.x >> 4) + cx;
+								int chunkZ = (region.z >> 4) + cz;
+								if (incremental && !this.isChunkOutdated(region, regionFile, chunkX, chunkZ))
+								{
+									skippedCount++;
+									continue;
+								}
+								MwChunk chunk = this.readChunk(chunkX, chunkZ, region.dimension);
+								region.updateChunk(chunk);
+								regionRenderedCount++;
+							}
 						}
 					}
+					finally
+					{
+						this.regionFileCache.releaseRegionFile(regionFile);
+					}
 				}
-				region.updateZoomLevels();
+				if (!incremental || (regionRenderedCount > 0))
+				{
+					region.updateZoomLevels();
+				}
+				this.regionMap.update(region);
+				renderedCount += regionRenderedCount;
+			}
+		}
+
+		Logging.logInfo("rebuild rendered %d chunks, skipped %d unchanged chunks", renderedCount, skippedCount);
+		Logging.logInfo("chunk cache: %s", this.chunkCache.getStats());
+	}
+
+	// load chunk from anvil file, or from the chunk cache if it was read by
+	// an earlier rebuild and has not been saved since
+	private MwChunk readChunk(int chunkX, int chunkZ, int dimension)
+	{
+		MwChunk chunk = this.chunkCache.get(chunkX, chunkZ, dimension);
+		if (chunk == null)
+		{
+			int generation = this.chunkCache.getGeneration();
+			chunk = MwChunk.read(chunkX, chunkZ, dimension, this.regionFileCache);
+			this.chunkCache.put(chunk, generation);
+		}
+		return chunk;
+	}
+
+	private boolean isChunkOutdated(Region region, RegionFile regionFile, int chunkX, int chunkZ)
+	{
+		int timestamp;
+		synchronized (regionFile)
+		{
+			if (!regionFile.isOpen() && regionFile.open())
+			{
+				return false;
+			}
+			if (!regionFile.hasChunk(chunkX, chunkZ))
+			{
+				return false;
 			}
+			timestamp = regionFile.getTimestamp(chunkX, chunkZ);
 		}
+		return region.renderManifest.isChunkOutdated(chunkX, chunkZ, timestamp);
 	}
 }
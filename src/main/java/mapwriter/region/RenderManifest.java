@@ -0,0 +1,180 @@
+package mapwriter.region;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import mapwriter.util.Logging;
+
+/*
+ * Records when each of the 32x32 chunks of a zoom level 0 region was last
+ * rendered into the region image. Compared against the region file chunk
+ * timestamps to find the chunks that have to be rendered again in an
+ * incremental rebuild. Times are in seconds, the same as the region file
+ * timestamps. Stored next to the region image as 1024 ints.
+ *
+ * The manifest is written by the tile save queue once the region image it
+ * describes has been stored, so it never lists a chunk as rendered that
+ * is missing from the image on disk.
+ */
+public class RenderManifest
+{
+	private final File file;
+	private final TileSaveQueue tileSaveQueue;
+	private final Long key;
+	private int[] renderTimes = null;
+	private boolean modified = false;
+
+	public RenderManifest(File file, TileSaveQueue tileSaveQueue, Long key)
+	{
+		this.file = file;
+		this.tileSaveQueue = tileSaveQueue;
+		this.key = key;
+	}
+
+	private static int getChunkIndex(int x, int z)
+	{
+		return ((z & 31) << 5) | (x & 31);
+	}
+
+	private int[] getRenderTimes()
+	{
+		if (this.renderTimes == null)
+		{
+			this.renderTimes = new int[1024];
+			this.load();
+		}
+		return this.renderTimes;
+	}
+
+	public long getMemorySize()
+	{
+		return (this.renderTimes != null) ? (this.renderTimes.length * 4L) : 0;
+	}
+
+	private void load()
+	{
+		// render times still waiting to be written are newer than the file
+		int[] pendingRenderTimes = this.tileSaveQueue.getRenderTimes(this.key);
+		if (pendingRenderTimes != null)
+		{
+			System.arraycopy(pendingRenderTimes, 0, this.renderTimes, 0, this.renderTimes.length);
+			return;
+		}
+		if (this.file.length() != (1024 * 4))
+		{
+			return;
+		}
+		DataInputStream dis = null;
+		try
+		{
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+			for (int i = 0; i < 1024; i++)
+			{
+				this.renderTimes[i] = dis.readInt();
+			}
+		}
+		catch (IOException e)
+		{
+			Logging.logError("could not read render manifest %s: %s", this.file, e);
+			Arrays.fill(this.renderTimes, 0);
+		}
+		finally
+		{
+			if (dis != null)
+			{
+				try
+				{
+					dis.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}
+	}
+
+	// a copy of the render times if they have changed since the last call,
+	// or null. the copy is written by store.
+	public int[] takeModified()
+	{
+		if (!this.modified || (this.renderTimes == null))
+		{
+			return null;
+		}
+		this.modified = false;
+		return Arrays.copyOf(this.renderTimes, this.renderTimes.length);
+	}
+
+	// write render times returned by takeModified, called by the tile save
+	// queue after the pixels of the region have been stored. returns true
+	// on error.
+	boolean store(int[] renderTimes)
+	{
+		boolean error = false;
+		DataOutputStream dos = null;
+		try
+		{
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.file)));
+			for (int i = 0; i < 1024; i++)
+			{
+				dos.writeInt(renderTimes[i]);
+			}
+		}
+		catch (IOException e)
+		{
+			Logging.logError("could not write render manifest %s: %s", this.file, e);
+			error = true;
+		}
+		finally
+		{
+			if (dos != null)
+			{
+				try
+				{
+					dos.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}
+		return error;
+	}
+
+	// forget all render times, used when the region image is missing or
+	// cleared.
+	public void clear()
+	{
+		this.renderTimes = new int[1024];
+		this.modified = true;
+	}
+
+	public int getRenderTime(int chunkX, int chunkZ)
+	{
+		return this.getRenderTimes()[getChunkIndex(chunkX, chunkZ)];
+	}
+
+	public void setRenderTime(int chunkX, int chunkZ, int time)
+	{
+		this.getRenderTimes()[getChunkIndex(chunkX, chunkZ)] = time;
+		this.modified = true;
+	}
+
+	// returns true if the chunk needs to be rendered again given the
+	// timestamp of the chunk in the region file. chunks with no timestamp
+	// (written by older versions) are rendered if they have never been
+	// rendered. a chunk saved in the same second it was rendered may have
+	// changed after the render, so it counts as outdated.
+	public boolean isChunkOutdated(int chunkX, int chunkZ, int timestamp)
+	{
+		int renderTime = this.getRenderTime(chunkX, chunkZ);
+		return (renderTime == 0) || (timestamp >= renderTime);
+	}
+}
@@ -7,112 +7,405 @@ import java.util.Arrays;
 
 import javax.imageio.ImageIO;
 
+import mapwriter.config.Config;
 import mapwriter.util.Logging;
 
 public class SurfacePixels
 {
 
 	protected Region region;
+	// slab holding the pixels of the region, or null if there is none. the
+	// pixels are only stored in the slab if Config.tileSlabStore is set,
+	// otherwise the slab is only read.
+	protected TileSlab tileSlab;
+	protected int tileX;
+	protected int tileZ;
 	protected File filename;
-	protected int[] pixels = null;
+	// region image written by older versions, converted to the current
+	// format the first time it is loaded
+	protected File pngFilename;
+	// colours ready to upload to a texture, with unexplored pixels 0
+	// (transparent) and all others opaque, and the height of the surface of
+	// each pixel for zoom level 0 regions. null if not loaded.
+	protected TilePixels tile = null;
 	protected boolean cannotLoad = false;
-	protected int updateCount = 0;
+	// chunks changed since the pixels were last saved. bit x of
+	// dirtyChunks[z] is set if the chunk at (x, z) within the region has
+	// changed.
+	protected final int[] dirtyChunks = new int[Region.SIZE >> 4];
 
-	public SurfacePixels(Region region, File filename)
+	// a chunk is rendered into a window of WINDOW_SIZE columns holding the
+	// chunk and the heights of the pixels north and west of it, which are
+	// used for shading
+	private static final int WINDOW_SIZE = 32;
+
+	private static class ScratchArrays
+	{
+		// copy of the pixels and heights of a chunk before it is rendered
+		// again
+		final int[] chunkPixels = new int[MwChunk.SIZE * MwChunk.SIZE];
+		final byte[] chunkHeights = new byte[MwChunk.SIZE * MwChunk.SIZE];
+		final int[] windowPixels = new int[WINDOW_SIZE * (MwChunk.SIZE + 1)];
+		final byte[] windowHeights = new byte[WINDOW_SIZE * (MwChunk.SIZE + 1)];
+		// two source rows and one scaled row
+		final int[] srcRows = new int[Region.SIZE * 2];
+		final int[] scaledRow = new int[Region.SIZE];
+		// pixels in the stored format
+		final int[] storedPixels = new int[Region.SIZE * Region.SIZE];
+		final byte[] storedHeights = new byte[Region.SIZE * Region.SIZE];
+	}
+
+	private static final ThreadLocal<ScratchArrays> scratchArrays = new ThreadLocal<ScratchArrays>()
+	{
+		@Override
+		protected ScratchArrays initialValue()
+		{
+			return new ScratchArrays();
+		}
+	};
+
+	public SurfacePixels(Region region, TileSlab tileSlab, File filename, File pngFilename)
 	{
 		this.region = region;
+		this.tileSlab = tileSlab;
+		this.tileX = region.x >> (Region.SHIFT + region.zoomLevel);
+		this.tileZ = region.z >> (Region.SHIFT + region.zoomLevel);
 		this.filename = filename;
+		this.pngFilename = pngFilename;
+	}
+
+	// returns true if an image of the region has been saved or is queued
+	// to be saved
+	public boolean exists()
+	{
+		if (this.region.regionManager.tileSaveQueue.contains(this.region.key))
+		{
+			return true;
+		}
+		if ((this.tileSlab != null) && this.tileSlab.hasTile(this.tileX, this.tileZ))
+		{
+			return true;
+		}
+		return this.filename.isFile() || this.pngFilename.isFile();
 	}
 
 	public void clear()
 	{
-		if (this.pixels != null)
+		if (this.tile != null)
 		{
-			Arrays.fill(this.pixels, 0);
+			this.tile = new TilePixels(this.hasHeights());
+			Arrays.fill(this.dirtyChunks, -1);
 		}
 	}
 
-	public void close()
+	// set the bits of the 16x16 pixel cells containing an area of pixels in
+	// a bitmap in the format of dirtyChunks
+	static void setCells(int[] cells, int x, int z, int w, int h)
 	{
-		if (this.updateCount > 0)
+		int x0 = Math.max(0, x >> 4);
+		int x1 = Math.min(31, (x + w - 1) >> 4);
+		if (x1 < x0)
 		{
-			this.save();
+			return;
 		}
-		this.pixels = null;
+		int mask = (int) ((1L << (x1 + 1)) - (1L << x0));
+		int z1 = Math.min(cells.length - 1, (z + h - 1) >> 4);
+		for (int cz = Math.max(0, z >> 4); cz <= z1; cz++)
+		{
+			cells[cz] |= mask;
+		}
+	}
+
+	// mark the chunks containing an area of pixels as changed
+	public void markDirty(int x, int z, int w, int h)
+	{
+		setCells(this.dirtyChunks, x, z, w, h);
 	}
 
-	private void save()
+	public boolean isDirty()
 	{
-		if (this.pixels != null)
+		for (int row : this.dirtyChunks)
+		{
+			if (row != 0)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void close()
+	{
+		this.save(false);
+		this.tile = null;
+	}
+
+	// save the changes of a region that stays loaded. returns true if
+	// anything was queued to be saved.
+	public boolean flush()
+	{
+		return this.save(true);
+	}
+
+	// hand the pixels, if they have changed, and the render times of the
+	// region, if they have changed, to the tile save queue. the pixels are
+	// only copied if this object keeps using them.
+	private boolean save(boolean copy)
+	{
+		RenderManifest renderManifest = this.region.renderManifest;
+		int[] renderTimes = (renderManifest != null) ? renderManifest.takeModified() : null;
+		TilePixels tile = null;
+		if (this.isDirty())
+		{
+			tile = copy ? this.tile.copy() : this.tile;
+		}
+		if ((tile != null) || (renderTimes != null))
+		{
+			this.region.regionManager.tileSaveQueue.add(this.region.key, this, tile, this.dirtyChunks, renderManifest, renderTimes);
+		}
+		if (tile != null)
 		{
-			saveImage(this.filename, this.pixels, Region.SIZE, Region.SIZE);
 			this.cannotLoad = false;
 		}
-		this.updateCount = 0;
+		Arrays.fill(this.dirtyChunks, 0);
+		return (tile != null) || (renderTimes != null);
+	}
+
+	// the tile slab and tile files store the height of each explored pixel
+	// in its alpha byte, as region images always have. convert pixels and
+	// heights to that format. heights may be null.
+	static void packHeights(int[] pixels, byte[] heights, int[] storedPixels)
+	{
+		if (heights == null)
+		{
+			System.arraycopy(pixels, 0, storedPixels, 0, pixels.length);
+			return;
+		}
+		for (int i = 0; i < pixels.length; i++)
+		{
+			int colour = pixels[i];
+			storedPixels[i] = (colour != 0) ? ((colour & 0x00ffffff) | (heights[i] << 24)) : 0;
+		}
+	}
+
+	// convert stored pixels in place to opaque colours, extracting their
+	// heights into 'heights' if it is not null.
+	static void unpackHeights(int[] pixels, byte[] heights)
+	{
+		for (int i = 0; i < pixels.length; i++)
+		{
+			int colour = pixels[i];
+			if (heights != null)
+			{
+				heights[i] = (byte) (colour >>> 24);
+			}
+			if (colour != 0)
+			{
+				pixels[i] = colour | 0xff000000;
+			}
+		}
+	}
+
+	// write the pixels to the tile slab or tile file, called by the tile
+	// save queue. only the chunks set in dirtyChunks are written to the
+	// slab, the tile file format is always written in full. returns true on
+	// error.
+	boolean store(TilePixels tile, int[] dirtyChunks)
+	{
+		int[] storedPixels = scratchArrays.get().storedPixels;
+		tile.toStored(storedPixels);
+		return this.storeStored(storedPixels, dirtyChunks);
+	}
+
+	private boolean useTileSlab()
+	{
+		return (this.tileSlab != null) && Config.tileSlabStore;
+	}
+
+	private boolean storeStored(int[] storedPixels, int[] dirtyChunks)
+	{
+		if (this.useTileSlab())
+		{
+			return this.tileSlab.save(this.tileX, this.tileZ, storedPixels, dirtyChunks);
+		}
+		return TileFile.save(this.filename, storedPixels, Region.SIZE, Region.SIZE);
+	}
+
+	private boolean hasHeights()
+	{
+		return this.region.zoomLevel == 0;
 	}
 
 	private void load()
 	{
-		if (!this.cannotLoad)
+		if (this.cannotLoad)
 		{
-			this.pixels = loadImage(this.filename, Region.SIZE, Region.SIZE);
-			if (this.pixels != null)
+			return;
+		}
+		// pixels of this region that are still waiting to be saved are newer
+		// than the saved image. they are copied rather than taken from the
+		// queue, so they are saved even if this region is never closed.
+		TilePixels pendingTile = this.region.regionManager.tileSaveQueue.get(this.region.key);
+		if (pendingTile != null)
+		{
+			this.tile = pendingTile.copy();
+			Arrays.fill(this.dirtyChunks, 0);
+			return;
+		}
+
+		ScratchArrays scratch = scratchArrays.get();
+		int[] pixels = null;
+		// file to convert to the current store, deleted once converted
+		File oldFile = null;
+		// a tile file is newer than the slot of the region in the slab, as
+		// the file is deleted when the region is stored in the slab and is
+		// only written again while the slab is not used for storing
+		if (this.filename.isFile())
+		{
+			pixels = TileFile.load(this.filename, Region.SIZE, Region.SIZE);
+			if (this.useTileSlab())
 			{
-				// set opaque black pixels to transparent so that
-				// background texture shows
-				for (int i = 0; i < this.pixels.length; i++)
-				{
-					int colour = this.pixels[i];
-					if (colour == 0xff000000)
-					{
-						this.pixels[i] = 0;
-					}
-				}
+				oldFile = this.filename;
 			}
-			else
+		}
+		if ((pixels == null) && (this.tileSlab != null) && this.tileSlab.load(this.tileX, this.tileZ, scratch.storedPixels))
+		{
+			pixels = scratch.storedPixels;
+		}
+		if ((pixels == null) && this.pngFilename.isFile())
+		{
+			pixels = this.loadPng();
+			oldFile = this.pngFilename;
+		}
+		if ((pixels != null) && (oldFile != null) && !this.storeStored(pixels, null))
+		{
+			Logging.logInfo("converted region image %s", oldFile);
+			oldFile.delete();
+		}
+		if (pixels != null)
+		{
+			byte[] heights = this.hasHeights() ? scratch.storedHeights : null;
+			unpackHeights(pixels, heights);
+			this.tile = TilePixels.compact(pixels, heights);
+		}
+		else
+		{
+			this.cannotLoad = true;
+		}
+		Arrays.fill(this.dirtyChunks, 0);
+	}
+
+	// load a PNG region image from an older version
+	private int[] loadPng()
+	{
+		int[] pixels = loadImage(this.pngFilename, Region.SIZE, Region.SIZE);
+		if (pixels != null)
+		{
+			// set opaque black pixels to transparent so that
+			// background texture shows
+			for (int i = 0; i < pixels.length; i++)
 			{
-				this.cannotLoad = true;
+				int colour = pixels[i];
+				if (colour == 0xff000000)
+				{
+					pixels[i] = 0;
+				}
 			}
-			this.updateCount = 0;
 		}
+		return pixels;
 	}
 
-	public int[] getPixels()
+	// the pixels of the region, or null if there is no image of it
+	public TilePixels getTilePixels()
 	{
-		if (this.pixels == null)
+		if (this.tile == null)
 		{
 			this.load();
 		}
-		return this.pixels;
+		return this.tile;
 	}
 
-	public int[] getOrAllocatePixels()
+	public TilePixels getOrAllocateTilePixels()
 	{
-		this.getPixels();
-		if (this.pixels == null)
+		this.getTilePixels();
+		if (this.tile == null)
 		{
-			this.pixels = new int[Region.SIZE * Region.SIZE];
+			this.tile = new TilePixels(this.hasHeights());
 			this.clear();
 		}
-		return this.pixels;
+		return this.tile;
 	}
 
-	public void updateChunk(MwChunk chunk)
+	// number of bytes used by the loaded pixels and heights
+	public long getMemorySize()
+	{
+		return (this.tile != null) ? this.tile.getMemorySize() : 0;
+	}
+
+	// render a chunk into the pixels. returns true if the colours of the
+	// chunk changed, in which case the higher zoom levels are updated. the
+	// chunk is marked dirty if its colours or heights changed.
+	public boolean updateChunk(MwChunk chunk)
 	{
 		int x = (chunk.x << 4);
 		int z = (chunk.z << 4);
-		int offset = this.region.getPixelOffset(x, z);
-		int[] pixels = this.getOrAllocatePixels();
+		int px = x & (Region.SIZE - 1);
+		int pz = z & (Region.SIZE - 1);
+		TilePixels tile = this.getOrAllocateTilePixels();
+		ScratchArrays scratch = scratchArrays.get();
+		int[] oldPixels = scratch.chunkPixels;
+		byte[] oldHeights = scratch.chunkHeights;
+		tile.getCell(px >> 4, pz >> 4, oldPixels, oldHeights, 0, MwChunk.SIZE);
+
+		// the chunk is placed at the first row and column of the window at
+		// the edges of the region, where ChunkRender has no neighbouring
+		// pixels to shade with
+		int[] pixels = scratch.windowPixels;
+		byte[] heights = scratch.windowHeights;
+		int row = (pz > 0) ? 1 : 0;
+		int column = (px > 0) ? 1 : 0;
+		int offset = (row * WINDOW_SIZE) + column;
+		for (int i = 0; i < MwChunk.SIZE; i++)
+		{
+			if (row > 0)
+			{
+				heights[column + i] = (byte) tile.getHeight(((pz - 1) << Region.SHIFT) + px + i);
+			}
+			if (column > 0)
+			{
+				heights[(row + i) * WINDOW_SIZE] = (byte) tile.getHeight(((pz + i) << Region.SHIFT) + px - 1);
+			}
+		}
+
 		// TODO: refactor so that blockColours can be accessed
 		// more directly
-		ChunkRender.renderSurface(this.region.regionManager.blockColours, chunk, pixels, offset, Region.SIZE, (chunk.dimension == -1) // use
+		ChunkRender.renderSurface(this.region.regionManager.blockColours, chunk, pixels, heights, offset, WINDOW_SIZE, (chunk.dimension == -1) // use
 				// ceiling
 				// algorithm
 				// for
 				// nether
 				);
-		this.region.updateZoomLevels(x, z, MwChunk.SIZE, MwChunk.SIZE);
-		this.updateCount++;
+		boolean coloursChanged = false;
+		boolean heightsChanged = false;
+		for (int i = 0; i < MwChunk.SIZE; i++)
+		{
+			int rowOffset = offset + (i * WINDOW_SIZE);
+			for (int j = 0; j < MwChunk.SIZE; j++)
+			{
+				coloursChanged |= (pixels[rowOffset + j] != oldPixels[(i * MwChunk.SIZE) + j]);
+				heightsChanged |= (heights[rowOffset + j] != oldHeights[(i * MwChunk.SIZE) + j]);
+			}
+		}
+		if (coloursChanged || heightsChanged)
+		{
+			tile.setCell(px >> 4, pz >> 4, pixels, heights, offset, WINDOW_SIZE);
+			this.markDirty(px, pz, MwChunk.SIZE, MwChunk.SIZE);
+		}
+		if (coloursChanged)
+		{
+			this.region.updateZoomLevels(x, z, MwChunk.SIZE, MwChunk.SIZE);
+		}
+		return coloursChanged;
 	}
 
 	// get the averaged colour of a 2x2 pixel area in the given pixels
@@ -133,24 +426,55 @@ public class SurfacePixels
 		return 0xff000000 | ((r & 0xff) << 16) | ((g & 0xff) << 8) | (b & 0xff);
 	}
 
+	// write 'w' pixels to dstPixels starting at dstOffset, each the
+	// average of a 2x2 pixel area of the two source rows starting at
+	// srcOffset. gives the same result as getAverageOfPixelQuad, except that
+	// an area of unexplored (0) pixels stays unexplored.
+	//
+	// the red and blue bytes are masked in place and added together in one
+	// int, the 8 bits between them leave room for the sum of four pixels.
+	// green is added in a second int.
+	public static void scaleRow(int[] srcPixels, int srcOffset, int scanSize, int[] dstPixels, int dstOffset, int w)
+	{
+		int s0 = srcOffset;
+		int s1 = srcOffset + scanSize;
+		int end = dstOffset + w;
+		for (int d = dstOffset; d < end; d++)
+		{
+			int p00 = srcPixels[s0];
+			int p01 = srcPixels[s0 + 1];
+			int p10 = srcPixels[s1];
+			int p11 = srcPixels[s1 + 1];
+			int rb = (p00 & 0x00ff00ff) + (p01 & 0x00ff00ff) + (p10 & 0x00ff00ff) + (p11 & 0x00ff00ff);
+			int g = (p00 & 0x0000ff00) + (p01 & 0x0000ff00) + (p10 & 0x0000ff00) + (p11 & 0x0000ff00);
+			int colour = 0xff000000 | ((rb >>> 2) & 0x00ff00ff) | ((g >>> 2) & 0x0000ff00);
+			dstPixels[d] = ((p00 | p01 | p10 | p11) != 0) ? colour : 0;
+			s0 += 2;
+			s1 += 2;
+		}
+	}
+
 	// update an area of pixels in this region from an area of pixels in
-	// srcPixels,
+	// srcTile,
 	// scaling the pixels by 50%.
-	public void updateScaled(int[] srcPixels, int srcX, int srcZ, int dstX, int dstZ, int dstW, int dstH)
+	public void updateScaled(TilePixels srcTile, int srcX, int srcZ, int dstX, int dstZ, int dstW, int dstH)
 	{
-		int[] dstPixels = this.getOrAllocatePixels();
+		TilePixels dstTile = this.getOrAllocateTilePixels();
+		ScratchArrays scratch = scratchArrays.get();
+		int[] srcRows = scratch.srcRows;
+		int[] scaledRow = scratch.scaledRow;
 		for (int j = 0; j < dstH; j++)
 		{
-			for (int i = 0; i < dstW; i++)
-			{
-				int srcOffset = ((srcZ + (j * 2)) << Region.SHIFT) + (srcX + (i * 2));
-				int dstPixel = getAverageOfPixelQuad(srcPixels, srcOffset, Region.SIZE);
-				dstPixels[((dstZ + j) << Region.SHIFT) + (dstX + i)] = dstPixel;
-			}
+			srcTile.getRow(srcX, srcZ + (j * 2), dstW * 2, srcRows, 0);
+			srcTile.getRow(srcX, srcZ + (j * 2) + 1, dstW * 2, srcRows, Region.SIZE);
+			scaleRow(srcRows, 0, Region.SIZE, scaledRow, 0, dstW);
+			dstTile.setRow(dstX, dstZ + j, dstW, scaledRow, 0);
 		}
-		this.updateCount++;
+		this.markDirty(dstX, dstZ, dstW, dstH);
 	}
 
+	// PNG is only used to export images and to convert region images saved
+	// by older versions
 	public static void saveImage(File filename, int[] pixels, int w, int h)
 	{
 		BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
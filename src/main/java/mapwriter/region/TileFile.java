@@ -0,0 +1,262 @@
+package mapwriter.region;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+
+import mapwriter.util.Logging;
+
+/*
+ * Reads and writes region surface pixels in mapwriter's own tile format,
+ * which is much faster to load than PNG.
+ *
+ * header (big endian):
+ *   int magic
+ *   int version
+ *   int width
+ *   int height
+ *   int compressed length
+ *   int CRC32 of the uncompressed plane data
+ * followed by the pixel data compressed with LzCodec.
+ *
+ * To make the data compress better the pixels are split into four planes
+ * (alpha, red, green, blue), and each byte in a plane is stored as the
+ * difference from the byte before it. Neighbouring map pixels usually have
+ * the same or similar colours and heights, which become runs of zeroes.
+ *
+ * Files are written to a temporary file which is then moved over the old
+ * one, so a tile is never left half written.
+ */
+public class TileFile
+{
+	public static final String EXTENSION = "mwt";
+
+	private static final int MAGIC = 0x4d575431;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 24;
+
+	private static class TileBuffers
+	{
+		byte[] raw = new byte[0];
+		byte[] compressed = new byte[0];
+		final int[] hashTable = new int[1 << LzCodec.HASH_BITS];
+		final CRC32 crc = new CRC32();
+
+		byte[] getRaw(int size)
+		{
+			if (this.raw.length < size)
+			{
+				this.raw = new byte[size];
+			}
+			return this.raw;
+		}
+
+		byte[] getCompressed(int size)
+		{
+			if (this.compressed.length < size)
+			{
+				this.compressed = new byte[size];
+			}
+			return this.compressed;
+		}
+
+		int getChecksum(byte[] data, int length)
+		{
+			this.crc.reset();
+			this.crc.update(data, 0, length);
+			return (int) this.crc.getValue();
+		}
+	}
+
+	// split the pixels into byte planes with each byte replaced by the
+	// difference from the previous byte in its plane
+	private static void encodePlanes(int[] pixels, int count, byte[] raw)
+	{
+		for (int plane = 0; plane < 4; plane++)
+		{
+			int shift = 24 - (plane * 8);
+			int offset = plane * count;
+			int prev = 0;
+			for (int i = 0; i < count; i++)
+			{
+				int b = pixels[i] >> shift;
+				raw[offset + i] = (byte) (b - prev);
+				prev = b;
+			}
+		}
+	}
+
+	private static void decodePlanes(byte[] raw, int count, int[] pixels)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			pixels[i] = 0;
+		}
+		for (int plane = 0; plane < 4; plane++)
+		{
+			int shift = 24 - (plane * 8);
+			int offset = plane * count;
+			int b = 0;
+			for (int i = 0; i < count; i++)
+			{
+				b += raw[offset + i];
+				pixels[i] |= (b & 0xff) << shift;
+			}
+		}
+	}
+
+	private static final ThreadLocal<TileBuffers> buffers = new ThreadLocal<TileBuffers>()
+	{
+		@Override
+		protected TileBuffers initialValue()
+		{
+			return new TileBuffers();
+		}
+	};
+
+	// returns the pixels of the tile, or null if the file does not exist or
+	// is not a valid w x h tile.
+	public static int[] load(File file, int w, int h)
+	{
+		if (!file.isFile())
+		{
+			return null;
+		}
+		TileBuffers tb = buffers.get();
+		int[] pixels = null;
+		RandomAccessFile f = null;
+		try
+		{
+			f = new RandomAccessFile(file, "r");
+			long fileLength = f.length();
+			if (fileLength < HEADER_SIZE)
+			{
+				throw new IOException("file too short");
+			}
+			byte[] header = new byte[HEADER_SIZE];
+			f.readFully(header);
+			ByteBuffer hb = ByteBuffer.wrap(header);
+			int magic = hb.getInt();
+			int version = hb.getInt();
+			int width = hb.getInt();
+			int height = hb.getInt();
+			int compressedLength = hb.getInt();
+			int checksum = hb.getInt();
+			if ((magic != MAGIC) || (version != VERSION))
+			{
+				throw new IOException(String.format("bad magic %08x or version %d", magic, version));
+			}
+			if ((width != w) || (height != h))
+			{
+				throw new IOException(String.format("tile is %dx%d, expected %dx%d", width, height, w, h));
+			}
+			if ((compressedLength < 0) || ((HEADER_SIZE + (long) compressedLength) != fileLength))
+			{
+				throw new IOException(String.format("compressed length %d does not match file length %d", compressedLength, fileLength));
+			}
+
+			byte[] compressed = tb.getCompressed(compressedLength);
+			f.readFully(compressed, 0, compressedLength);
+			int rawLength = w * h * 4;
+			byte[] raw = tb.getRaw(rawLength);
+			LzCodec.decompress(compressed, 0, compressedLength, raw, rawLength);
+			if (tb.getChecksum(raw, rawLength) != checksum)
+			{
+				throw new IOException("checksum mismatch");
+			}
+
+			pixels = new int[w * h];
+			decodePlanes(raw, w * h, pixels);
+		}
+		catch (IOException e)
+		{
+			Logging.logWarning("could not load tile %s: %s", file, e);
+		}
+		catch (DataFormatException e)
+		{
+			Logging.logWarning("could not load tile %s: %s", file, e);
+		}
+		finally
+		{
+			if (f != null)
+			{
+				try
+				{
+					f.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}
+		return pixels;
+	}
+
+	// returns true on error
+	public static boolean save(File file, int[] pixels, int w, int h)
+	{
+		TileBuffers tb = buffers.get();
+		int rawLength = w * h * 4;
+		byte[] raw = tb.getRaw(rawLength);
+		encodePlanes(pixels, w * h, raw);
+		byte[] compressed = tb.getCompressed(HEADER_SIZE + LzCodec.getMaxCompressedLength(rawLength));
+		int compressedLength = LzCodec.compress(raw, rawLength, compressed, HEADER_SIZE, tb.hashTable);
+
+		ByteBuffer hb = ByteBuffer.wrap(compressed, 0, HEADER_SIZE);
+		hb.putInt(MAGIC);
+		hb.putInt(VERSION);
+		hb.putInt(w);
+		hb.putInt(h);
+		hb.putInt(compressedLength);
+		hb.putInt(tb.getChecksum(raw, rawLength));
+
+		File tmpFile = new File(file.getPath() + ".tmp");
+		boolean error = true;
+		RandomAccessFile f = null;
+		try
+		{
+			f = new RandomAccessFile(tmpFile, "rw");
+			f.setLength(0);
+			f.write(compressed, 0, HEADER_SIZE + compressedLength);
+			f.close();
+			f = null;
+			try
+			{
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException e)
+			{
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			error = false;
+		}
+		catch (IOException e)
+		{
+			Logging.logError("could not write tile %s: %s", file, e);
+		}
+		finally
+		{
+			if (f != null)
+			{
+				try
+				{
+					f.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+			if (error)
+			{
+				tmpFile.delete();
+			}
+		}
+		return error;
+	}
+}
@@ -0,0 +1,622 @@
+package mapwriter.region;
+
+import java.util.Arrays;
+
+import mapwriter.config.Config;
+
+/*
+ * The colours and heights of the pixels of one region in memory.
+ *
+ * Most regions near the edge of the explored area are nearly empty, and
+ * the higher zoom levels of oceans are often a single colour, so a full
+ * 512x512 array is only allocated once it is needed. A tile starts out
+ * with every pixel set to the fill colour (0 for unexplored, or a single
+ * colour loaded from a uniform region image). Each 16x16 pixel cell that
+ * is written with anything else gets its own arrays. Once more than
+ * MAX_SPARSE_CELLS cells are allocated the tile is converted to full
+ * arrays, which are used from then on.
+ *
+ * Dense tiles loaded from disk are palette encoded if
+ * Config.regionPaletteEncoding is set. Most regions use a few hundred
+ * colours, so each pixel is stored as a byte or short index into a palette
+ * of the colours of the tile and decoded a row at a time when it is read.
+ * The first write to an encoded tile decodes it into a full array.
+ *
+ * Heights are only kept for zoom level 0 tiles. Pixels of a cell without
+ * arrays have a height of 0.
+ */
+public class TilePixels
+{
+	private static final int CELL_SHIFT = 4;
+	private static final int CELL_SIZE = 1 << CELL_SHIFT;
+	private static final int CELL_PIXELS = CELL_SIZE * CELL_SIZE;
+	private static final int CELLS_SHIFT = Region.SHIFT - CELL_SHIFT;
+	private static final int CELLS = 1 << (CELLS_SHIFT * 2);
+	// a sparse tile with this many cells uses about as much memory as full
+	// arrays, and reading it is slower
+	private static final int MAX_SPARSE_CELLS = (CELLS * 3) / 4;
+	// approximate size of an array object apart from its elements
+	private static final int ARRAY_OVERHEAD = 16;
+	private static final int MAX_BYTE_PALETTE_COLOURS = 1 << 8;
+	private static final int MAX_PALETTE_COLOURS = 1 << 16;
+
+	private static class PaletteBuilder
+	{
+		// open addressing table from colour to palette index + 1, 0 for
+		// unused slots
+		final int[] colours = new int[MAX_PALETTE_COLOURS * 2];
+		final int[] slots = new int[MAX_PALETTE_COLOURS * 2];
+		final int[] palette = new int[MAX_PALETTE_COLOURS];
+		final short[] indices = new short[Region.SIZE * Region.SIZE];
+	}
+
+	private static final ThreadLocal<PaletteBuilder> paletteBuilders = new ThreadLocal<PaletteBuilder>()
+	{
+		@Override
+		protected PaletteBuilder initialValue()
+		{
+			return new PaletteBuilder();
+		}
+	};
+
+	private final boolean hasHeights;
+	private int fillColour = 0;
+
+	// arrays of each cell in row order while the tile is sparse, null if no
+	// cell has been written
+	private int[][] cellPixels = null;
+	private byte[][] cellHeights = null;
+	private int cellCount = 0;
+
+	// all pixels once the tile is dense, null before
+	private int[] pixels = null;
+	private byte[] heights = null;
+
+	// palette encoded pixels of a dense tile that has not been written to
+	// since it was loaded, with its heights in 'heights'. the indices are
+	// bytes if there are at most MAX_BYTE_PALETTE_COLOURS colours, shorts
+	// otherwise.
+	private int[] palette = null;
+	private byte[] byteIndices = null;
+	private short[] shortIndices = null;
+
+	// create a tile with all pixels unexplored
+	public TilePixels(boolean hasHeights)
+	{
+		this.hasHeights = hasHeights;
+	}
+
+	// create a tile from the pixels of a whole region, which are copied.
+	// heights may be null.
+	public static TilePixels compact(int[] pixels, byte[] heights)
+	{
+		TilePixels tile = new TilePixels(heights != null);
+		if ((heights == null) && isUniform(pixels, 0, pixels.length, pixels[0]))
+		{
+			tile.fillColour = pixels[0];
+			return tile;
+		}
+		int count = 0;
+		for (int cell = 0; cell < CELLS; cell++)
+		{
+			if (!isEmpty(pixels, heights, getCellOffset(cell), Region.SIZE, 0))
+			{
+				count++;
+			}
+		}
+		if (count > MAX_SPARSE_CELLS)
+		{
+			if (!Config.regionPaletteEncoding || !tile.encode(pixels))
+			{
+				tile.pixels = Arrays.copyOf(pixels, pixels.length);
+			}
+			tile.heights = (heights != null) ? Arrays.copyOf(heights, heights.length) : null;
+			return tile;
+		}
+		for (int cell = 0; cell < CELLS; cell++)
+		{
+			int offset = getCellOffset(cell);
+			if (!isEmpty(pixels, heights, offset, Region.SIZE, 0))
+			{
+				tile.allocateCell(cell);
+				copyRect(pixels, heights, offset, Region.SIZE, tile.cellPixels[cell], tile.hasHeights ? tile.cellHeights[cell] : null, 0, CELL_SIZE);
+			}
+		}
+		return tile;
+	}
+
+	// set the palette and indices of the tile from 'pixels'. returns false
+	// if the pixels have too many colours to encode.
+	private boolean encode(int[] pixels)
+	{
+		PaletteBuilder builder = paletteBuilders.get();
+		int[] colours = builder.colours;
+		int[] slots = builder.slots;
+		int[] palette = builder.palette;
+		short[] indices = builder.indices;
+		Arrays.fill(slots, 0);
+		int mask = slots.length - 1;
+		int count = 0;
+		for (int i = 0; i < pixels.length; i++)
+		{
+			int colour = pixels[i];
+			int slot = (colour * 0x9e3779b9) >>> 15;
+			while ((slots[slot] != 0) && (colours[slot] != colour))
+			{
+				slot = (slot + 1) & mask;
+			}
+			if (slots[slot] == 0)
+			{
+				if (count >= MAX_PALETTE_COLOURS)
+				{
+					return false;
+				}
+				colours[slot] = colour;
+				palette[count] = colour;
+				slots[slot] = ++count;
+			}
+			indices[i] = (short) (slots[slot] - 1);
+		}
+		this.palette = Arrays.copyOf(palette, count);
+		if (count <= MAX_BYTE_PALETTE_COLOURS)
+		{
+			this.byteIndices = new byte[indices.length];
+			for (int i = 0; i < indices.length; i++)
+			{
+				this.byteIndices[i] = (byte) indices[i];
+			}
+		}
+		else
+		{
+			this.shortIndices = Arrays.copyOf(indices, indices.length);
+		}
+		return true;
+	}
+
+	// decode 'w' palette encoded pixels starting at offset to dst
+	private void decode(int offset, int w, int[] dst, int dstOffset)
+	{
+		int[] palette = this.palette;
+		if (this.byteIndices != null)
+		{
+			byte[] indices = this.byteIndices;
+			for (int i = 0; i < w; i++)
+			{
+				dst[dstOffset + i] = palette[indices[offset + i] & 0xff];
+			}
+		}
+		else
+		{
+			short[] indices = this.shortIndices;
+			for (int i = 0; i < w; i++)
+			{
+				dst[dstOffset + i] = palette[indices[offset + i] & 0xffff];
+			}
+		}
+	}
+
+	// convert a palette encoded tile to a full array before it is written
+	private void checkDecoded()
+	{
+		if (this.palette != null)
+		{
+			int[] pixels = new int[Region.SIZE * Region.SIZE];
+			this.decode(0, pixels.length, pixels, 0);
+			this.pixels = pixels;
+			this.palette = null;
+			this.byteIndices = null;
+			this.shortIndices = null;
+		}
+	}
+
+	private static boolean isUniform(int[] pixels, int offset, int length, int colour)
+	{
+		for (int i = offset; i < (offset + length); i++)
+		{
+			if (pixels[i] != colour)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// returns true if all pixels of the 16x16 area at offset are 'colour'
+	// with a height of 0
+	private static boolean isEmpty(int[] pixels, byte[] heights, int offset, int scanSize, int colour)
+	{
+		for (int z = 0; z < CELL_SIZE; z++)
+		{
+			int rowOffset = offset + (z * scanSize);
+			for (int x = 0; x < CELL_SIZE; x++)
+			{
+				if ((pixels[rowOffset + x] != colour) || ((heights != null) && (heights[rowOffset + x] != 0)))
+				{
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	// copy a 16x16 area of pixels and heights, the heights are only copied
+	// if both arrays are not null
+	private static void copyRect(int[] srcPixels, byte[] srcHeights, int srcOffset, int srcScanSize, int[] dstPixels, byte[] dstHeights, int dstOffset, int dstScanSize)
+	{
+		for (int z = 0; z < CELL_SIZE; z++)
+		{
+			System.arraycopy(srcPixels, srcOffset + (z * srcScanSize), dstPixels, dstOffset + (z * dstScanSize), CELL_SIZE);
+			if ((srcHeights != null) && (dstHeights != null))
+			{
+				System.arraycopy(srcHeights, srcOffset + (z * srcScanSize), dstHeights, dstOffset + (z * dstScanSize), CELL_SIZE);
+			}
+		}
+	}
+
+	private static int getCellOffset(int cell)
+	{
+		int cx = cell & ((1 << CELLS_SHIFT) - 1);
+		int cz = cell >> CELLS_SHIFT;
+		return (cz << (CELL_SHIFT + Region.SHIFT)) + (cx << CELL_SHIFT);
+	}
+
+	// index of the cell holding the pixel at offset
+	private static int getCell(int offset)
+	{
+		return ((offset >> (Region.SHIFT + CELL_SHIFT)) << CELLS_SHIFT) | ((offset & (Region.SIZE - 1)) >> CELL_SHIFT);
+	}
+
+	// offset of a pixel within its cell
+	private static int getOffsetInCell(int offset)
+	{
+		return (((offset >> Region.SHIFT) & (CELL_SIZE - 1)) << CELL_SHIFT) | (offset & (CELL_SIZE - 1));
+	}
+
+	private void allocateCell(int cell)
+	{
+		if (this.cellPixels == null)
+		{
+			this.cellPixels = new int[CELLS][];
+			this.cellHeights = this.hasHeights ? new byte[CELLS][] : null;
+		}
+		int[] cellPixels = new int[CELL_PIXELS];
+		if (this.fillColour != 0)
+		{
+			Arrays.fill(cellPixels, this.fillColour);
+		}
+		this.cellPixels[cell] = cellPixels;
+		if (this.hasHeights)
+		{
+			this.cellHeights[cell] = new byte[CELL_PIXELS];
+		}
+		this.cellCount++;
+	}
+
+	private void freeCell(int cell)
+	{
+		this.cellPixels[cell] = null;
+		if (this.hasHeights)
+		{
+			this.cellHeights[cell] = null;
+		}
+		this.cellCount--;
+	}
+
+	// convert to full arrays if too many cells are allocated
+	private void checkDense()
+	{
+		if (this.cellCount > MAX_SPARSE_CELLS)
+		{
+			int[] pixels = new int[Region.SIZE * Region.SIZE];
+			byte[] heights = this.hasHeights ? new byte[Region.SIZE * Region.SIZE] : null;
+			for (int cell = 0; cell < CELLS; cell++)
+			{
+				int offset = getCellOffset(cell);
+				if (this.cellPixels[cell] != null)
+				{
+					copyRect(this.cellPixels[cell], this.hasHeights ? this.cellHeights[cell] : null, 0, CELL_SIZE, pixels, heights, offset, Region.SIZE);
+				}
+				else if (this.fillColour != 0)
+				{
+					for (int z = 0; z < CELL_SIZE; z++)
+					{
+						Arrays.fill(pixels, offset + (z * Region.SIZE), offset + (z * Region.SIZE) + CELL_SIZE, this.fillColour);
+					}
+				}
+			}
+			this.pixels = pixels;
+			this.heights = heights;
+			this.cellPixels = null;
+			this.cellHeights = null;
+			this.cellCount = 0;
+		}
+	}
+
+	public boolean hasHeights()
+	{
+		return this.hasHeights;
+	}
+
+	public boolean isDense()
+	{
+		return (this.pixels != null) || (this.palette != null);
+	}
+
+	public boolean isPaletteEncoded()
+	{
+		return this.palette != null;
+	}
+
+	// returns true if every pixel is the fill colour
+	public boolean isUniform()
+	{
+		return !this.isDense() && (this.cellCount == 0);
+	}
+
+	public int getFillColour()
+	{
+		return this.fillColour;
+	}
+
+	public int getPixel(int offset)
+	{
+		if (this.pixels != null)
+		{
+			return this.pixels[offset];
+		}
+		if (this.byteIndices != null)
+		{
+			return this.palette[this.byteIndices[offset] & 0xff];
+		}
+		if (this.shortIndices != null)
+		{
+			return this.palette[this.shortIndices[offset] & 0xffff];
+		}
+		int[] cellPixels = (this.cellPixels != null) ? this.cellPixels[getCell(offset)] : null;
+		return (cellPixels != null) ? cellPixels[getOffsetInCell(offset)] : this.fillColour;
+	}
+
+	// height of the pixel at offset, 0 if unknown
+	public int getHeight(int offset)
+	{
+		if (this.heights != null)
+		{
+			return this.heights[offset] & 0xff;
+		}
+		byte[] cellHeights = (this.cellHeights != null) ? this.cellHeights[getCell(offset)] : null;
+		return (cellHeights != null) ? (cellHeights[getOffsetInCell(offset)] & 0xff) : 0;
+	}
+
+	// copy 'w' pixels of row 'z' starting at column 'x' to dst
+	public void getRow(int x, int z, int w, int[] dst, int dstOffset)
+	{
+		int offset = (z << Region.SHIFT) + x;
+		if (this.pixels != null)
+		{
+			System.arraycopy(this.pixels, offset, dst, dstOffset, w);
+			return;
+		}
+		if (this.palette != null)
+		{
+			this.decode(offset, w, dst, dstOffset);
+			return;
+		}
+		int end = x + w;
+		while (x < end)
+		{
+			int n = Math.min(end, (x | (CELL_SIZE - 1)) + 1) - x;
+			int[] cellPixels = (this.cellPixels != null) ? this.cellPixels[getCell(offset)] : null;
+			if (cellPixels != null)
+			{
+				System.arraycopy(cellPixels, getOffsetInCell(offset), dst, dstOffset, n);
+			}
+			else
+			{
+				Arrays.fill(dst, dstOffset, dstOffset + n, this.fillColour);
+			}
+			x += n;
+			offset += n;
+			dstOffset += n;
+		}
+	}
+
+	// write 'w' pixels from src to row 'z' starting at column 'x'. heights
+	// are not changed.
+	public void setRow(int x, int z, int w, int[] src, int srcOffset)
+	{
+		this.checkDecoded();
+		int offset = (z << Region.SHIFT) + x;
+		if (this.pixels != null)
+		{
+			System.arraycopy(src, srcOffset, this.pixels, offset, w);
+			return;
+		}
+		int end = x + w;
+		while (x < end)
+		{
+			int n = Math.min(end, (x | (CELL_SIZE - 1)) + 1) - x;
+			int cell = getCell(offset);
+			if ((this.cellPixels != null) && (this.cellPixels[cell] != null))
+			{
+				System.arraycopy(src, srcOffset, this.cellPixels[cell], getOffsetInCell(offset), n);
+			}
+			else if (!isUniform(src, srcOffset, n, this.fillColour))
+			{
+				this.allocateCell(cell);
+				System.arraycopy(src, srcOffset, this.cellPixels[cell], getOffsetInCell(offset), n);
+			}
+			x += n;
+			offset += n;
+			srcOffset += n;
+		}
+		this.checkDense();
+	}
+
+	// copy the pixels and heights of the 16x16 cell (cx, cz) to dst. dst
+	// heights may be null.
+	public void getCell(int cx, int cz, int[] dstPixels, byte[] dstHeights, int dstOffset, int dstScanSize)
+	{
+		int cell = (cz << CELLS_SHIFT) | cx;
+		if (this.pixels != null)
+		{
+			copyRect(this.pixels, this.heights, getCellOffset(cell), Region.SIZE, dstPixels, dstHeights, dstOffset, dstScanSize);
+		}
+		else if (this.palette != null)
+		{
+			int offset = getCellOffset(cell);
+			for (int z = 0; z < CELL_SIZE; z++)
+			{
+				this.decode(offset + (z * Region.SIZE), CELL_SIZE, dstPixels, dstOffset + (z * dstScanSize));
+				if ((this.heights != null) && (dstHeights != null))
+				{
+					System.arraycopy(this.heights, offset + (z * Region.SIZE), dstHeights, dstOffset + (z * dstScanSize), CELL_SIZE);
+				}
+			}
+		}
+		else if ((this.cellPixels != null) && (this.cellPixels[cell] != null))
+		{
+			copyRect(this.cellPixels[cell], this.hasHeights ? this.cellHeights[cell] : null, 0, CELL_SIZE, dstPixels, dstHeights, dstOffset, dstScanSize);
+		}
+		else
+		{
+			for (int z = 0; z < CELL_SIZE; z++)
+			{
+				int rowOffset = dstOffset + (z * dstScanSize);
+				Arrays.fill(dstPixels, rowOffset, rowOffset + CELL_SIZE, this.fillColour);
+				if (dstHeights != null)
+				{
+					Arrays.fill(dstHeights, rowOffset, rowOffset + CELL_SIZE, (byte) 0);
+				}
+			}
+		}
+	}
+
+	// write the pixels and heights of the 16x16 cell (cx, cz) from src. src
+	// heights may be null if the tile has no heights.
+	public void setCell(int cx, int cz, int[] srcPixels, byte[] srcHeights, int srcOffset, int srcScanSize)
+	{
+		this.checkDecoded();
+		int cell = (cz << CELLS_SHIFT) | cx;
+		if (this.pixels != null)
+		{
+			copyRect(srcPixels, srcHeights, srcOffset, srcScanSize, this.pixels, this.heights, getCellOffset(cell), Region.SIZE);
+			return;
+		}
+		boolean allocated = (this.cellPixels != null) && (this.cellPixels[cell] != null);
+		if (isEmpty(srcPixels, this.hasHeights ? srcHeights : null, srcOffset, srcScanSize, this.fillColour))
+		{
+			if (allocated)
+			{
+				this.freeCell(cell);
+			}
+			return;
+		}
+		if (!allocated)
+		{
+			this.allocateCell(cell);
+		}
+		copyRect(srcPixels, srcHeights, srcOffset, srcScanSize, this.cellPixels[cell], this.hasHeights ? this.cellHeights[cell] : null, 0, CELL_SIZE);
+		this.checkDense();
+	}
+
+	// write all pixels to storedPixels in the format of the tile slab and
+	// tile files, with the height of each explored pixel in its alpha byte.
+	// a copy of the tile that can be written to without changing this one.
+	// the palette and indices of an encoded tile are never written to, so
+	// they are shared.
+	public TilePixels copy()
+	{
+		TilePixels tile = new TilePixels(this.hasHeights);
+		tile.fillColour = this.fillColour;
+		if (this.cellPixels != null)
+		{
+			tile.cellPixels = new int[CELLS][];
+			tile.cellHeights = this.hasHeights ? new byte[CELLS][] : null;
+			for (int cell = 0; cell < CELLS; cell++)
+			{
+				if (this.cellPixels[cell] != null)
+				{
+					tile.cellPixels[cell] = this.cellPixels[cell].clone();
+					if (this.hasHeights)
+					{
+						tile.cellHeights[cell] = this.cellHeights[cell].clone();
+					}
+				}
+			}
+			tile.cellCount = this.cellCount;
+		}
+		tile.pixels = (this.pixels != null) ? this.pixels.clone() : null;
+		tile.heights = (this.heights != null) ? this.heights.clone() : null;
+		tile.palette = this.palette;
+		tile.byteIndices = this.byteIndices;
+		tile.shortIndices = this.shortIndices;
+		return tile;
+	}
+
+	public void toStored(int[] storedPixels)
+	{
+		if (this.pixels != null)
+		{
+			SurfacePixels.packHeights(this.pixels, this.heights, storedPixels);
+			return;
+		}
+		if (this.palette != null)
+		{
+			this.decode(0, storedPixels.length, storedPixels, 0);
+			SurfacePixels.packHeights(storedPixels, this.heights, storedPixels);
+			return;
+		}
+		for (int cell = 0; cell < CELLS; cell++)
+		{
+			int offset = getCellOffset(cell);
+			int[] cellPixels = (this.cellPixels != null) ? this.cellPixels[cell] : null;
+			byte[] cellHeights = ((cellPixels != null) && this.hasHeights) ? this.cellHeights[cell] : null;
+			for (int z = 0; z < CELL_SIZE; z++)
+			{
+				int rowOffset = offset + (z * Region.SIZE);
+				if (cellPixels == null)
+				{
+					Arrays.fill(storedPixels, rowOffset, rowOffset + CELL_SIZE, this.fillColour);
+					continue;
+				}
+				for (int x = 0; x < CELL_SIZE; x++)
+				{
+					int colour = cellPixels[(z << CELL_SHIFT) + x];
+					if ((colour != 0) && (cellHeights != null))
+					{
+						colour = (colour & 0x00ffffff) | (cellHeights[(z << CELL_SHIFT) + x] << 24);
+					}
+					storedPixels[rowOffset + x] = colour;
+				}
+			}
+		}
+	}
+
+	// approximate number of bytes of memory used by the tile
+	public long getMemorySize()
+	{
+		long size = ARRAY_OVERHEAD * 2;
+		if (this.heights != null)
+		{
+			size += this.heights.length;
+		}
+		if (this.pixels != null)
+		{
+			size += this.pixels.length * 4L;
+		}
+		else if (this.palette != null)
+		{
+			size += (this.palette.length * 4L) + ((this.byteIndices != null) ? this.byteIndices.length : (this.shortIndices.length * 2L));
+		}
+		else if (this.cellPixels != null)
+		{
+			long cellSize = (CELL_PIXELS * 4) + ARRAY_OVERHEAD;
+			if (this.hasHeights)
+			{
+				cellSize += CELL_PIXELS + ARRAY_OVERHEAD;
+			}
+			size += (CELLS * 8L * (this.hasHeights ? 2 : 1)) + (this.cellCount * cellSize);
+		}
+		return size;
+	}
+}
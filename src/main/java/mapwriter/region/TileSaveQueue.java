@@ -0,0 +1,252 @@
+package mapwriter.region;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import mapwriter.util.Logging;
+
+/*
+ * Saves the pixels of closed regions on a separate thread, so that a task
+ * evicting a region from the RegionManager does not wait for its image to
+ * be written. Loaded regions also queue a copy of their pixels when the
+ * RegionManager flushes them. The render manifest of a region is saved with its pixels,
+ * and only once they have been stored, so a manifest on disk never lists
+ * chunks as rendered that are missing from the image. A region whose
+ * pixels have not changed may queue its render times alone.
+ *
+ * Tiles are saved in the order they were added. If a tile is added again
+ * before it has been saved, the newer pixels replace the queued ones and
+ * the tile is only saved once. At most MAX_QUEUED_TILES tiles are queued,
+ * adding a tile to a full queue waits for one to be saved.
+ *
+ * A region that is loaded again while its tile is queued or being saved
+ * copies the queued pixels instead of loading the older image from disk.
+ * The queued tile stays in the queue and is still saved, as the Region
+ * object loading it may be one that has already been evicted and would
+ * never be closed again.
+ */
+public class TileSaveQueue
+{
+	private static final int MAX_QUEUED_TILES = 16;
+
+	static class PendingTile
+	{
+		final Long key;
+		final SurfacePixels surfacePixels;
+		// null if only the render times are saved
+		final TilePixels tile;
+		// the chunks changed since the tile was last saved, in the format of
+		// SurfacePixels.dirtyChunks
+		final int[] dirtyChunks;
+		// render times to write to renderManifest, or null
+		final RenderManifest renderManifest;
+		final int[] renderTimes;
+
+		PendingTile(Long key, SurfacePixels surfacePixels, TilePixels tile, int[] dirtyChunks, RenderManifest renderManifest, int[] renderTimes)
+		{
+			this.key = key;
+			this.surfacePixels = surfacePixels;
+			this.tile = tile;
+			this.dirtyChunks = dirtyChunks;
+			this.renderManifest = renderManifest;
+			this.renderTimes = renderTimes;
+		}
+
+		void save()
+		{
+			boolean error = false;
+			if (this.tile != null)
+			{
+				error = this.surfacePixels.store(this.tile, this.dirtyChunks);
+			}
+			// the render times are only written once the pixels they
+			// describe are stored
+			if (!error && (this.renderTimes != null))
+			{
+				this.renderManifest.store(this.renderTimes);
+			}
+		}
+	}
+
+	// tiles waiting to be saved in the order they were first added, keyed by
+	// region
+	private final LinkedHashMap<Long, PendingTile> pendingTiles = new LinkedHashMap<Long, PendingTile>();
+	// the tile being saved
+	private PendingTile savingTile = null;
+	private boolean running = false;
+	private boolean closed = false;
+	private long savedCount = 0;
+	private long coalescedCount = 0;
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(new ChunkSaveQueue.SaveThreadFactory("MapWriter tile saver"));
+
+	private final Runnable saveTask = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			while (true)
+			{
+				PendingTile pendingTile;
+				synchronized (TileSaveQueue.this)
+				{
+					Iterator<PendingTile> it = TileSaveQueue.this.pendingTiles.values().iterator();
+					if (!it.hasNext())
+					{
+						TileSaveQueue.this.running = false;
+						TileSaveQueue.this.notifyAll();
+						break;
+					}
+					pendingTile = it.next();
+					it.remove();
+					TileSaveQueue.this.savingTile = pendingTile;
+					// wake threads waiting for space in the queue
+					TileSaveQueue.this.notifyAll();
+				}
+				try
+				{
+					pendingTile.save();
+				}
+				finally
+				{
+					synchronized (TileSaveQueue.this)
+					{
+						TileSaveQueue.this.savingTile = null;
+						TileSaveQueue.this.savedCount++;
+						TileSaveQueue.this.notifyAll();
+					}
+				}
+			}
+		}
+	};
+
+	private boolean isSaving(Long key)
+	{
+		return (this.savingTile != null) && this.savingTile.key.equals(key);
+	}
+
+	// add the pixels of a region to be saved, followed by its render
+	// times. either tile or renderTimes may be null. neither must be changed
+	// by the caller afterwards, dirtyChunks is copied.
+	public void add(Long key, SurfacePixels surfacePixels, TilePixels tile, int[] dirtyChunks, RenderManifest renderManifest, int[] renderTimes)
+	{
+		dirtyChunks = Arrays.copyOf(dirtyChunks, dirtyChunks.length);
+		synchronized (this)
+		{
+			while (!this.closed && (this.pendingTiles.size() >= MAX_QUEUED_TILES) && !this.pendingTiles.containsKey(key))
+			{
+				try
+				{
+					this.wait();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			if (!this.closed)
+			{
+				PendingTile oldTile = this.pendingTiles.get(key);
+				if (oldTile != null)
+				{
+					// the chunks changed in the replaced save still need to be
+					// written
+					for (int i = 0; i < dirtyChunks.length; i++)
+					{
+						dirtyChunks[i] |= oldTile.dirtyChunks[i];
+					}
+					if (tile == null)
+					{
+						surfacePixels = oldTile.surfacePixels;
+						tile = oldTile.tile;
+					}
+					if (renderTimes == null)
+					{
+						renderManifest = oldTile.renderManifest;
+						renderTimes = oldTile.renderTimes;
+					}
+					this.coalescedCount++;
+				}
+				this.pendingTiles.put(key, new PendingTile(key, surfacePixels, tile, dirtyChunks, renderManifest, renderTimes));
+				if (!this.running)
+				{
+					this.running = true;
+					this.executor.execute(this.saveTask);
+				}
+				return;
+			}
+		}
+		// save on this thread if the queue is closed
+		new PendingTile(key, surfacePixels, tile, dirtyChunks, renderManifest, renderTimes).save();
+	}
+
+	// the newest pixels of a tile that is queued or being saved, or null if
+	// the tile is not queued. the pixels must not be changed by the caller.
+	synchronized TilePixels get(Long key)
+	{
+		PendingTile pendingTile = this.pendingTiles.get(key);
+		TilePixels tile = (pendingTile != null) ? pendingTile.tile : null;
+		if ((tile == null) && this.isSaving(key))
+		{
+			tile = this.savingTile.tile;
+		}
+		return tile;
+	}
+
+	// the newest render times of a region that are queued or being saved,
+	// or null. the render times must not be changed by the caller.
+	synchronized int[] getRenderTimes(Long key)
+	{
+		PendingTile pendingTile = this.pendingTiles.get(key);
+		int[] renderTimes = (pendingTile != null) ? pendingTile.renderTimes : null;
+		if ((renderTimes == null) && this.isSaving(key))
+		{
+			renderTimes = this.savingTile.renderTimes;
+		}
+		return renderTimes;
+	}
+
+	// returns true if the pixels of the tile are queued or being saved
+	public synchronized boolean contains(Long key)
+	{
+		return this.get(key) != null;
+	}
+
+	// stop accepting tiles and wait for all queued tiles to be saved.
+	public void close()
+	{
+		synchronized (this)
+		{
+			this.closed = true;
+			this.notifyAll();
+			while (this.running)
+			{
+				try
+				{
+					this.wait();
+				}
+				catch (InterruptedException e)
+				{
+					Logging.logError("interrupted while waiting for %d tiles to be saved", this.pendingTiles.size());
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			Logging.logInfo("tile save queue: saved %d tiles, coalesced %d saves", this.savedCount, this.coalescedCount);
+		}
+		this.executor.shutdown();
+		try
+		{
+			this.executor.awaitTermination(10L, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
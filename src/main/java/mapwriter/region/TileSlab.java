@@ -0,0 +1,355 @@
+package mapwriter.region;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import mapwriter.util.Logging;
+
+/*
+ * Stores the surface pixels of all regions of one dimension and zoom level
+ * in a single memory mapped file, instead of one file per region.
+ *
+ * The slab file is an array of fixed size slots, each holding the raw
+ * 512x512 ints of one region. It is mapped in segments of SEGMENT_SLOTS
+ * slots, so loading or saving a region is a copy to or from the mapping
+ * with no file open or decompression. Slots are given out in the order
+ * regions are first saved and are never reclaimed, so the slab only grows.
+ * The index file lists the region coordinates of each slot and is
+ * rewritten each time a slot is given out. A slot written in full is
+ * forced to disk along with the index before save returns, as the caller
+ * may then delete the region image it replaces.
+ *
+ * Slots are stored uncompressed, 1 MB per region, so the slab is only
+ * used if Config.tileSlabStore is set. A slab that exists is still read
+ * when the option is turned off.
+ *
+ * The segments are not unmapped by close, they stay mapped until they are
+ * garbage collected.
+ */
+public class TileSlab
+{
+	public static final String SLAB_FILE = "tiles.slab";
+	public static final String INDEX_FILE = "tiles.index";
+
+	private static final int SLOT_PIXELS = Region.SIZE * Region.SIZE;
+	private static final long SLOT_SIZE = SLOT_PIXELS * 4L;
+	private static final int SEGMENT_SLOTS = 16;
+	private static final int INDEX_MAGIC = 0x4d575331;
+
+	private final File slabFile;
+	private final File indexFile;
+	private RandomAccessFile file = null;
+	private boolean cannotOpen = false;
+
+	// slot of each region, keyed by packed region coordinates
+	private final Map<Long, Integer> slots = new HashMap<Long, Integer>();
+	// region coordinates of each slot in slot order
+	private final List<Long> slotKeys = new ArrayList<Long>();
+	private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+	private boolean indexModified = false;
+
+	public TileSlab(File dir)
+	{
+		this.slabFile = new File(dir, SLAB_FILE);
+		this.indexFile = new File(dir, INDEX_FILE);
+	}
+
+	@Override
+	public String toString()
+	{
+		return this.slabFile.toString();
+	}
+
+	private static Long getKey(int rx, int rz)
+	{
+		return Long.valueOf((((long) rz) << 32) | (rx & 0xffffffffL));
+	}
+
+	private boolean open()
+	{
+		if (this.file != null)
+		{
+			return false;
+		}
+		if (this.cannotOpen)
+		{
+			return true;
+		}
+		try
+		{
+			this.slabFile.getParentFile().mkdirs();
+			this.loadIndex();
+			this.file = new RandomAccessFile(this.slabFile, "rw");
+			if (this.file.length() < (this.slotKeys.size() * SLOT_SIZE))
+			{
+				Logging.logWarning("tile slab %s is shorter than its index, discarding the index", this);
+				this.slots.clear();
+				this.slotKeys.clear();
+				this.indexModified = true;
+			}
+		}
+		catch (IOException e)
+		{
+			Logging.logError("could not open tile slab %s: %s", this, e);
+			this.cannotOpen = true;
+			this.file = null;
+		}
+		return this.file == null;
+	}
+
+	private void loadIndex() throws IOException
+	{
+		this.slots.clear();
+		this.slotKeys.clear();
+		if (!this.indexFile.isFile())
+		{
+			return;
+		}
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(this.indexFile)));
+		try
+		{
+			if (dis.readInt() != INDEX_MAGIC)
+			{
+				throw new IOException("bad index magic");
+			}
+			int count = dis.readInt();
+			for (int i = 0; i < count; i++)
+			{
+				Long key = getKey(dis.readInt(), dis.readInt());
+				this.slots.put(key, i);
+				this.slotKeys.add(key);
+			}
+		}
+		finally
+		{
+			dis.close();
+		}
+	}
+
+	private void saveIndex() throws IOException
+	{
+		File tmpFile = new File(this.indexFile.getPath() + ".tmp");
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+		try
+		{
+			dos.writeInt(INDEX_MAGIC);
+			dos.writeInt(this.slotKeys.size());
+			for (Long key : this.slotKeys)
+			{
+				dos.writeInt((int) key.longValue());
+				dos.writeInt((int) (key.longValue() >> 32));
+			}
+		}
+		finally
+		{
+			dos.close();
+		}
+		try
+		{
+			Files.move(tmpFile.toPath(), this.indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{
+			Files.move(tmpFile.toPath(), this.indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	// get the mapping of the segment holding 'slot', mapping it (and
+	// growing the file) if needed.
+	private MappedByteBuffer getSegment(int slot) throws IOException
+	{
+		int segment = slot / SEGMENT_SLOTS;
+		while (this.segments.size() <= segment)
+		{
+			this.segments.add(null);
+		}
+		MappedByteBuffer buffer = this.segments.get(segment);
+		if (buffer == null)
+		{
+			FileChannel channel = this.file.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, segment * SEGMENT_SLOTS * SLOT_SIZE, SEGMENT_SLOTS * SLOT_SIZE);
+			this.segments.set(segment, buffer);
+		}
+		return buffer;
+	}
+
+	// get a view of the pixels of a slot
+	private IntBuffer getSlot(int slot) throws IOException
+	{
+		ByteBuffer buffer = this.getSegment(slot).duplicate();
+		buffer.position((int) ((slot % SEGMENT_SLOTS) * SLOT_SIZE));
+		return buffer.asIntBuffer();
+	}
+
+	public synchronized boolean hasTile(int rx, int rz)
+	{
+		return !this.open() && this.slots.containsKey(getKey(rx, rz));
+	}
+
+	// copy the pixels of the region into 'pixels'. returns false if the
+	// region is not in the slab.
+	public synchronized boolean load(int rx, int rz, int[] pixels)
+	{
+		if (this.open())
+		{
+			return false;
+		}
+		Integer slot = this.slots.get(getKey(rx, rz));
+		if (slot == null)
+		{
+			return false;
+		}
+		try
+		{
+			this.getSlot(slot).get(pixels, 0, SLOT_PIXELS);
+			return true;
+		}
+		catch (IOException e)
+		{
+			Logging.logError("could not read region (%d, %d) from tile slab %s: %s", rx, rz, this, e);
+			return false;
+		}
+	}
+
+	// write the pixels of the region to its slot. if dirtyChunks is not
+	// null only the chunks set in it (in the format of
+	// SurfacePixels.dirtyChunks) are written, unless the region has no slot
+	// yet. returns true on error.
+	public synchronized boolean save(int rx, int rz, int[] pixels, int[] dirtyChunks)
+	{
+		if (this.open())
+		{
+			return true;
+		}
+		Long key = getKey(rx, rz);
+		Integer slot = this.slots.get(key);
+		boolean newSlot = (slot == null);
+		if (newSlot)
+		{
+			// a new slot may hold pixels left by a region whose index entry
+			// was lost, so it is always written in full
+			slot = this.slotKeys.size();
+			this.slots.put(key, slot);
+			this.slotKeys.add(key);
+			this.indexModified = true;
+			dirtyChunks = null;
+		}
+		try
+		{
+			IntBuffer buffer = this.getSlot(slot);
+			if (dirtyChunks == null)
+			{
+				buffer.put(pixels, 0, SLOT_PIXELS);
+				this.getSegment(slot).force();
+			}
+			else
+			{
+				writeDirtyChunks(buffer, pixels, dirtyChunks);
+			}
+		}
+		catch (IOException e)
+		{
+			Logging.logError("could not write region (%d, %d) to tile slab %s: %s", rx, rz, this, e);
+			return true;
+		}
+		if (newSlot)
+		{
+			// write the index before returning, as the caller may delete
+			// the image the region was converted from
+			try
+			{
+				this.saveIndex();
+				this.indexModified = false;
+			}
+			catch (IOException e)
+			{
+				Logging.logError("could not write tile slab index %s: %s", this.indexFile, e);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// write each run of dirty chunks in each row of chunks
+	private static void writeDirtyChunks(IntBuffer buffer, int[] pixels, int[] dirtyChunks)
+	{
+		int base = buffer.position();
+		for (int cz = 0; cz < dirtyChunks.length; cz++)
+		{
+			int row = dirtyChunks[cz];
+			while (row != 0)
+			{
+				int start = Integer.numberOfTrailingZeros(row);
+				int end = Integer.numberOfTrailingZeros(~(row >>> start)) + start;
+				int x = start << 4;
+				int w = (end - start) << 4;
+				for (int z = cz << 4; z < ((cz + 1) << 4); z++)
+				{
+					int offset = (z << Region.SHIFT) + x;
+					buffer.position(base + offset);
+					buffer.put(pixels, offset, w);
+				}
+				row &= (end < 32) ? (-1 << end) : 0;
+			}
+		}
+	}
+
+	// write the index if regions have been added
+	public synchronized void flush()
+	{
+		if ((this.file != null) && this.indexModified)
+		{
+			try
+			{
+				this.saveIndex();
+				this.indexModified = false;
+			}
+			catch (IOException e)
+			{
+				Logging.logError("could not write tile slab index %s: %s", this.indexFile, e);
+			}
+		}
+	}
+
+	public synchronized void close()
+	{
+		this.flush();
+		for (MappedByteBuffer segment : this.segments)
+		{
+			if (segment != null)
+			{
+				segment.force();
+			}
+		}
+		this.segments.clear();
+		if (this.file != null)
+		{
+			try
+			{
+				this.file.close();
+			}
+			catch (IOException e)
+			{
+			}
+			this.file = null;
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package mapwriter.region;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/*
+ * Areas of regions that have changed but have not been scaled into the
+ * next zoom level yet.
+ *
+ * Scaling every rendered chunk through all zoom levels straight away costs
+ * several times as much as rendering it, while the zoomed out map is rarely
+ * looked at. Instead each change is recorded here and applied in batches:
+ * before a higher zoom level region is shown in the map texture, when the
+ * background thread is idle, and when the region manager is closed.
+ *
+ * Changes are kept per zoom level and per region as a bitmap of 16x16 pixel
+ * cells in the format of SurfacePixels.dirtyChunks, so an area changed many
+ * times is scaled once. Applying the changes of a level records the areas
+ * written in the level above, so levels are always processed from the
+ * lowest up.
+ *
+ * Only used from the background thread, apart from getCount.
+ */
+public class ZoomLevelUpdates
+{
+	private static class PendingArea
+	{
+		final int x;
+		final int z;
+		final int dimension;
+		final int[] cells = new int[Region.SIZE >> 4];
+
+		PendingArea(int x, int z, int dimension)
+		{
+			this.x = x;
+			this.z = z;
+			this.dimension = dimension;
+		}
+	}
+
+	private final RegionManager regionManager;
+	// changed areas of each zoom level, keyed by region
+	private final List<LinkedHashMap<Long, PendingArea>> levels = new ArrayList<LinkedHashMap<Long, PendingArea>>();
+	private volatile int count = 0;
+
+	public ZoomLevelUpdates(RegionManager regionManager)
+	{
+		this.regionManager = regionManager;
+	}
+
+	private LinkedHashMap<Long, PendingArea> getLevel(int zoomLevel)
+	{
+		while (this.levels.size() <= zoomLevel)
+		{
+			this.levels.add(new LinkedHashMap<Long, PendingArea>());
+		}
+		return this.levels.get(zoomLevel);
+	}
+
+	// record that an area of a region has changed. x, z, w, h in world block
+	// coordinates.
+	public void add(Region region, int x, int z, int w, int h)
+	{
+		if (region.zoomLevel >= this.regionManager.maxZoom)
+		{
+			return;
+		}
+		LinkedHashMap<Long, PendingArea> level = this.getLevel(region.zoomLevel);
+		PendingArea area = level.get(region.key);
+		if (area == null)
+		{
+			area = new PendingArea(region.x, region.z, region.dimension);
+			level.put(region.key, area);
+			this.count++;
+		}
+		int px = (x - region.x) >> region.zoomLevel;
+		int pz = (z - region.z) >> region.zoomLevel;
+		SurfacePixels.setCells(area.cells, px, pz, Math.max(1, w >> region.zoomLevel), Math.max(1, h >> region.zoomLevel));
+	}
+
+	// number of regions with changes waiting to be scaled
+	public int getCount()
+	{
+		return this.count;
+	}
+
+	// scale the changes within an area in the zoom levels below maxZoomLevel.
+	public void update(int x, int z, int w, int h, int dimension, int maxZoomLevel)
+	{
+		for (int zoomLevel = 0; zoomLevel < maxZoomLevel; zoomLevel++)
+		{
+			if (zoomLevel >= this.levels.size())
+			{
+				break;
+			}
+			int size = Region.SIZE << zoomLevel;
+			List<PendingArea> areas = new ArrayList<PendingArea>();
+			Iterator<PendingArea> it = this.levels.get(zoomLevel).values().iterator();
+			while (it.hasNext())
+			{
+				PendingArea area = it.next();
+				if ((area.dimension == dimension) && (area.x < (x + w)) && (x < (area.x + size)) && (area.z < (z + h)) && (z < (area.z + size)))
+				{
+					areas.add(area);
+					it.remove();
+				}
+			}
+			this.apply(areas, zoomLevel);
+		}
+	}
+
+	// scale the changes of at most 'budget' regions, lowest zoom levels
+	// first. returns the number of regions processed.
+	public int update(int budget)
+	{
+		int processed = 0;
+		for (int zoomLevel = 0; (zoomLevel < this.levels.size()) && (processed < budget); zoomLevel++)
+		{
+			List<PendingArea> areas = new ArrayList<PendingArea>();
+			Iterator<PendingArea> it = this.levels.get(zoomLevel).values().iterator();
+			while (it.hasNext() && ((processed + areas.size()) < budget))
+			{
+				areas.add(it.next());
+				it.remove();
+			}
+			this.apply(areas, zoomLevel);
+			processed += areas.size();
+		}
+		return processed;
+	}
+
+	private void apply(List<PendingArea> areas, int zoomLevel)
+	{
+		this.count -= areas.size();
+		int cellSize = 16 << zoomLevel;
+		for (PendingArea area : areas)
+		{
+			// scale each run of changed cells in each row of cells
+			for (int cz = 0; cz < area.cells.length; cz++)
+			{
+				int row = area.cells[cz];
+				while (row != 0)
+				{
+					int start = Integer.numberOfTrailingZeros(row);
+					int end = Integer.numberOfTrailingZeros(~(row >>> start)) + start;
+					// the region is looked up for each run, as adding the
+					// region of the next zoom level may evict it from the
+					// region cache
+					Region region = this.regionManager.getRegion(area.x, area.z, zoomLevel, area.dimension);
+					region.updateNextZoomLevel(area.x + (start * cellSize), area.z + (cz * cellSize), (end - start) * cellSize, cellSize);
+					row &= (end < 32) ? (-1 << end) : 0;
+				}
+			}
+		}
+	}
+}
@@ -12,9 +12,15 @@ public class RebuildRegionsTask extends Task
 	final RegionManager regionManager;
 	final BlockColours blockColours;
 	final int x, z, w, h, dimension;
+	final boolean incremental;
 	String msg = "";
 
 	public RebuildRegionsTask(Mw mw, int x, int z, int w, int h, int dimension)
+	{
+		this(mw, x, z, w, h, dimension, false);
+	}
+
+	public RebuildRegionsTask(Mw mw, int x, int z, int w, int h, int dimension, boolean incremental)
 	{
 		this.regionManager = mw.regionManager;
 		this.blockColours = mw.blockColours;
@@ -23,13 +29,14 @@ public class RebuildRegionsTask extends Task
 		this.w = w;
 		this.h = h;
 		this.dimension = dimension;
+		this.incremental = incremental;
 	}
 
 	@Override
 	public void run()
 	{
 		this.regionManager.blockColours = this.blockColours;
-		this.regionManager.rebuildRegions(this.x, this.z, this.w, this.h, this.dimension);
+		this.regionManager.rebuildRegions(this.x, this.z, this.w, this.h, this.dimension, this.incremental);
 	}
 
 	@Override
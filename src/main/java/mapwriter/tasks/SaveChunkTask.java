@@ -23,7 +23,8 @@ public class SaveChunkTask extends Task
 	public void run()
 	{
 		this.Running.set(true);
-		this.chunk.write(this.regionManager.regionFileCache);
+		// the chunk is encoded and written by the save queue threads
+		this.regionManager.chunkSaveQueue.addChunk(this.chunk);
 	}
 
 	@Override
@@ -31,16 +31,18 @@ public class UpdateSurfaceChunksTask extends Task
 		this.Running.set(true);
 		if (this.chunk != null)
 		{
-			// update the chunk in the region pixels
-			this.regionManager.updateChunk(this.chunk);
-			// copy updated region pixels to maptexture
-			this.mapTexture.updateArea(
-					this.regionManager,
-					this.chunk.x << 4,
-					this.chunk.z << 4,
-					MwChunk.SIZE,
-					MwChunk.SIZE,
-					this.chunk.dimension);
+			// update the chunk in the region pixels, and copy the updated
+			// region pixels to maptexture if they changed
+			if (this.regionManager.updateChunk(this.chunk))
+			{
+				this.mapTexture.updateArea(
+						this.regionManager,
+						this.chunk.x << 4,
+						this.chunk.z << 4,
+						MwChunk.SIZE,
+						MwChunk.SIZE,
+						this.chunk.dimension);
+			}
 		}
 	}
 
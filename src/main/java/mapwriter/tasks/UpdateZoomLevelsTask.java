@@ -0,0 +1,35 @@
+package mapwriter.tasks;
+
+import mapwriter.region.RegionManager;
+
+// scales changed map areas into the higher zoom levels while the background
+// thread is idle, and periodically queues the changed regions to be saved
+public class UpdateZoomLevelsTask extends Task
+{
+	// number of changed regions updated per task
+	private static final int REGIONS_PER_TASK = 8;
+
+	private final RegionManager regionManager;
+
+	public UpdateZoomLevelsTask(RegionManager regionManager)
+	{
+		this.regionManager = regionManager;
+	}
+
+	@Override
+	public void run()
+	{
+		this.regionManager.updateZoomLevels(REGIONS_PER_TASK);
+	}
+
+	@Override
+	public void onComplete()
+	{
+	}
+
+	@Override
+	public boolean CheckForDuplicate()
+	{
+		return false;
+	}
+}
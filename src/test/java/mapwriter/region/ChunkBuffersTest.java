@@ -0,0 +1,197 @@
+package mapwriter.region;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import mapwriter.config.Config;
+
+/*
+ * Checks that chunk data round trips through the pooled buffers, and
+ * measures the bytes allocated per chunk written and read once the buffers
+ * of the thread have grown to size. Only the two small stream objects
+ * returned by getDecompressedStream should be allocated per read.
+ *
+ * Reads are also done from a direct buffer, as they are from a mapped region
+ * file.
+ */
+public class ChunkBuffersTest
+{
+	private static final int CHUNK_SIZE = 48 * 1024;
+	private static final int WARMUP = 50;
+	private static final int ITERATIONS = 500;
+	private static final long MAX_BYTES_PER_CHUNK = 1024;
+
+	private final String savedCompression = Config.regionFileCompression;
+
+	@After
+	public void restoreConfig()
+	{
+		Config.regionFileCompression = this.savedCompression;
+	}
+
+	// chunk like data: long runs of a few values with some noise
+	private static byte[] makeChunkData()
+	{
+		Random random = new Random(1);
+		byte[] data = new byte[CHUNK_SIZE];
+		for (int i = 0; i < data.length; i++)
+		{
+			data[i] = (byte) ((random.nextInt(16) == 0) ? random.nextInt(256) : ((i >> 8) & 3));
+		}
+		return data;
+	}
+
+	// copy the stored chunk data, without the version byte, into a direct
+	// buffer. 'length' is the number of bytes of data to copy.
+	private static ByteBuffer toDirect(ChunkBuffers buffers, ByteBuffer direct, int length)
+	{
+		direct.clear();
+		direct.put(buffers.outputBuffer.getBuffer(), 1, length);
+		direct.flip();
+		return direct;
+	}
+
+	// 'direct' is the buffer to read the stored data from, or null to read
+	// it from the output buffer
+	private static byte[] roundTrip(ChunkBuffers buffers, byte[] data, byte[] result, ByteBuffer direct) throws Exception
+	{
+		buffers.uncompressedBuffer.reset();
+		buffers.uncompressedBuffer.write(data, 0, data.length);
+		buffers.compress(0);
+		byte[] stored = buffers.outputBuffer.getBuffer();
+		int storedLength = buffers.outputBuffer.size();
+		DataInputStream dis;
+		if (direct != null)
+		{
+			dis = buffers.getDecompressedStream(stored[0], toDirect(buffers, direct, storedLength - 1));
+		}
+		else
+		{
+			dis = buffers.getDecompressedStream(stored[0], stored, 1, storedLength - 1);
+		}
+		dis.readFully(result);
+		assertEquals(-1, dis.read());
+		return result;
+	}
+
+	private static long getAllocatedBytes()
+	{
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(sunBean.isThreadAllocatedMemorySupported());
+		sunBean.setThreadAllocatedMemoryEnabled(true);
+		return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private void checkCompression(ChunkCompression compression, boolean fromDirect) throws Exception
+	{
+		Config.regionFileCompression = compression.configName;
+		ChunkBuffers buffers = ChunkBuffers.get();
+		byte[] data = makeChunkData();
+		byte[] result = new byte[data.length];
+		ByteBuffer direct = fromDirect ? ByteBuffer.allocateDirect(CHUNK_SIZE * 2) : null;
+		for (int i = 0; i < WARMUP; i++)
+		{
+			roundTrip(buffers, data, result, direct);
+		}
+		assertArrayEquals(data, result);
+
+		long start = getAllocatedBytes();
+		for (int i = 0; i < ITERATIONS; i++)
+		{
+			roundTrip(buffers, data, result, direct);
+		}
+		long bytesPerChunk = (getAllocatedBytes() - start) / ITERATIONS;
+		assertTrue(String.format("%s allocated %d bytes per chunk", compression, bytesPerChunk), bytesPerChunk < MAX_BYTES_PER_CHUNK);
+	}
+
+	@Test
+	public void deflateReusesBuffers() throws Exception
+	{
+		this.checkCompression(ChunkCompression.DEFLATE, false);
+	}
+
+	@Test
+	public void lzReusesBuffers() throws Exception
+	{
+		this.checkCompression(ChunkCompression.LZ, false);
+	}
+
+	@Test
+	public void uncompressedReusesBuffers() throws Exception
+	{
+		this.checkCompression(ChunkCompression.NONE, false);
+	}
+
+	@Test
+	public void deflateFromDirectBuffer() throws Exception
+	{
+		this.checkCompression(ChunkCompression.DEFLATE, true);
+	}
+
+	@Test
+	public void lzFromDirectBuffer() throws Exception
+	{
+		this.checkCompression(ChunkCompression.LZ, true);
+	}
+
+	@Test
+	public void uncompressedFromDirectBuffer() throws Exception
+	{
+		this.checkCompression(ChunkCompression.NONE, true);
+	}
+
+	@Test
+	public void uncompressedVersion3() throws Exception
+	{
+		// version 3 is uncompressed data, as written by Minecraft
+		byte[] data = makeChunkData();
+		DataInputStream dis = ChunkBuffers.get().getDecompressedStream(3, data, 0, data.length);
+		byte[] result = new byte[data.length];
+		dis.readFully(result);
+		assertArrayEquals(data, result);
+		assertEquals(-1, dis.read());
+	}
+
+	@Test
+	public void truncatedFromDirectBuffer() throws Exception
+	{
+		ChunkBuffers buffers = ChunkBuffers.get();
+		byte[] data = makeChunkData();
+		ByteBuffer direct = ByteBuffer.allocateDirect(CHUNK_SIZE * 2);
+		ChunkCompression[] compressions = new ChunkCompression[]
+		{
+				ChunkCompression.DEFLATE, ChunkCompression.LZ
+		};
+		for (ChunkCompression compression : compressions)
+		{
+			Config.regionFileCompression = compression.configName;
+			buffers.uncompressedBuffer.reset();
+			buffers.uncompressedBuffer.write(data, 0, data.length);
+			buffers.compress(0);
+			int length = (buffers.outputBuffer.size() - 1) / 2;
+			try
+			{
+				buffers.getDecompressedStream(compression.version, toDirect(buffers, direct, length));
+				fail(String.format("%s read truncated data", compression));
+			}
+			catch (DataFormatException e)
+			{
+				// expected
+			}
+		}
+	}
+}
@@ -0,0 +1,379 @@
+package mapwriter.region;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockColored;
+import net.minecraft.block.material.Material;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.init.Blocks;
+import net.minecraft.init.Bootstrap;
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagList;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.tileentity.TileEntityChest;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.NibbleArray;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+
+/*
+ * Checks that ChunkNbtWriter writes exactly the bytes, including the order
+ * of the tags in each compound, that CompressedStreamTools.write gives for
+ * the NBTTagCompound tree MwChunk used to build. The order of the tags
+ * written by NBTTagCompound depends on the iteration order of its HashMap,
+ * so the tree is built here the same way the old MwChunk.writeChunkToNBT
+ * built it.
+ *
+ * Also checks that chunks written by ChunkNbtWriter read back the same
+ * through ChunkNbtReader and MwChunk.read.
+ */
+public class ChunkNbtWriterTest
+{
+	// vanilla has no block with an id above 255, so the states of a block
+	// that is not otherwise registered are added to the state id map under
+	// this id, which makes the sections holding it write an "Add" array
+	private static final int HIGH_BLOCK_ID = 1000;
+
+	private static Block highBlock;
+
+	@BeforeClass
+	public static void registerBlocks()
+	{
+		Bootstrap.register();
+		highBlock = new BlockColored(Material.ROCK);
+		for (IBlockState state : highBlock.getBlockState().getValidStates())
+		{
+			Block.BLOCK_STATE_IDS.put(state, (HIGH_BLOCK_ID << 4) | highBlock.getMetaFromState(state));
+		}
+	}
+
+	private static IBlockState[] getStates()
+	{
+		return new IBlockState[]
+		{
+				Blocks.AIR.getDefaultState(), Blocks.STONE.getDefaultState(), Blocks.DIRT.getDefaultState(), Blocks.GRASS.getDefaultState(), Blocks.WATER.getDefaultState(), Blocks.WOOL.getStateFromMeta(5), Blocks.WOOL.getStateFromMeta(14), Blocks.LOG.getStateFromMeta(9), Blocks.LEAVES.getStateFromMeta(4), highBlock.getStateFromMeta(3), highBlock.getStateFromMeta(14)
+		};
+	}
+
+	private static ExtendedBlockStorage makeStorage(Random random, int y, boolean skyLight)
+	{
+		IBlockState[] states = getStates();
+		ExtendedBlockStorage storage = new ExtendedBlockStorage(y << 4, skyLight);
+		for (int by = 0; by < 16; by++)
+		{
+			for (int bz = 0; bz < 16; bz++)
+			{
+				for (int bx = 0; bx < 16; bx++)
+				{
+					storage.set(bx, by, bz, states[random.nextInt(states.length)]);
+					storage.getBlocklightArray().set(bx, by, bz, random.nextInt(16));
+					if (skyLight)
+					{
+						storage.getSkylightArray().set(bx, by, bz, random.nextInt(16));
+					}
+				}
+			}
+		}
+		return storage;
+	}
+
+	private static MwChunk makeChunk(long seed, boolean skyLight, boolean tileEntities)
+	{
+		Random random = new Random(seed);
+		ExtendedBlockStorage[] data = new ExtendedBlockStorage[16];
+		for (int y = 0; y < 16; y++)
+		{
+			if ((y < 4) || (random.nextInt(3) == 0))
+			{
+				data[y] = makeStorage(random, y, skyLight);
+			}
+		}
+		byte[] biomes = new byte[256];
+		random.nextBytes(biomes);
+		Map<BlockPos, TileEntity> tileEntityMap = new HashMap<BlockPos, TileEntity>();
+		if (tileEntities)
+		{
+			for (int i = 0; i < 3; i++)
+			{
+				BlockPos pos = new BlockPos((5 << 4) + random.nextInt(16), random.nextInt(64), (-7 << 4) + random.nextInt(16));
+				TileEntityChest chest = new TileEntityChest();
+				chest.setPos(pos);
+				tileEntityMap.put(pos, chest);
+			}
+		}
+		return new MwChunk(5, -7, 0, data, biomes, tileEntityMap);
+	}
+
+	// the tree built by MwChunk before ChunkNbtWriter was added
+	private static NBTTagCompound writeChunkToNBT(MwChunk chunk)
+	{
+		NBTTagCompound level = new NBTTagCompound();
+		NBTTagCompound compound = new NBTTagCompound();
+		level.setTag("Level", compound);
+
+		compound.setInteger("xPos", chunk.x);
+		compound.setInteger("zPos", chunk.z);
+		NBTTagList sections = new NBTTagList();
+		for (ExtendedBlockStorage storage : chunk.dataArray)
+		{
+			if (storage != Chunk.NULL_BLOCK_STORAGE)
+			{
+				NBTTagCompound section = new NBTTagCompound();
+				section.setByte("Y", (byte) ((storage.getYLocation() >> 4) & 255));
+				byte[] blocks = new byte[4096];
+				NibbleArray meta = new NibbleArray();
+				NibbleArray add = storage.getData().getDataForNBT(blocks, meta);
+				section.setByteArray("Blocks", blocks);
+				section.setByteArray("Data", meta.getData());
+				if (add != null)
+				{
+					section.setByteArray("Add", add.getData());
+				}
+				section.setByteArray("BlockLight", storage.getBlocklightArray().getData());
+				if ((storage.getSkylightArray() != null) && (storage.getSkylightArray().getData() != null))
+				{
+					section.setByteArray("SkyLight", storage.getSkylightArray().getData());
+				}
+				else
+				{
+					section.setByteArray("SkyLight", new byte[storage.getBlocklightArray().getData().length]);
+				}
+				sections.appendTag(section);
+			}
+		}
+		compound.setTag("Sections", sections);
+		compound.setByteArray("Biomes", chunk.biomeArray);
+
+		NBTTagList tileEntities = new NBTTagList();
+		for (TileEntity tileentity : chunk.tileentityMap.values())
+		{
+			try
+			{
+				tileEntities.appendTag(tileentity.writeToNBT(new NBTTagCompound()));
+			}
+			catch (Exception e)
+			{
+			}
+		}
+		compound.setTag("TileEntities", tileEntities);
+		return level;
+	}
+
+	private static byte[] writeChunk(MwChunk chunk) throws IOException
+	{
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bos);
+		ChunkNbtWriter.get().write(chunk, dos);
+		dos.close();
+		return bos.toByteArray();
+	}
+
+	private static void checkBlocks(MwChunk expected, ExtendedBlockStorage[] data, byte[] biomes)
+	{
+		assertArrayEquals(expected.biomeArray, biomes);
+		for (int y = 0; y < 16; y++)
+		{
+			ExtendedBlockStorage expectedStorage = expected.dataArray[y];
+			if (expectedStorage == Chunk.NULL_BLOCK_STORAGE)
+			{
+				assertNull("section " + y, data[y]);
+				continue;
+			}
+			assertNotNull("section " + y, data[y]);
+			for (int by = 0; by < 16; by++)
+			{
+				for (int bz = 0; bz < 16; bz++)
+				{
+					for (int bx = 0; bx < 16; bx++)
+					{
+						// states are equal only if both the block id and
+						// the metadata are
+						assertEquals(String.format("block (%d, %d, %d) of section %d", bx, by, bz, y), expectedStorage.get(bx, by, bz), data[y].get(bx, by, bz));
+					}
+				}
+			}
+		}
+	}
+
+	// ChunkNbtReader skips the light arrays, so they are checked in the NBT
+	// tree. returns the number of sections with an "Add" array.
+	private static int checkLight(MwChunk expected, byte[] bytes) throws IOException
+	{
+		NBTTagCompound level = CompressedStreamTools.read(new DataInputStream(new ByteArrayInputStream(bytes))).getCompoundTag("Level");
+		NBTTagList sections = level.getTagList("Sections", 10);
+		int addCount = 0;
+		for (int i = 0; i < sections.tagCount(); i++)
+		{
+			NBTTagCompound section = sections.getCompoundTagAt(i);
+			ExtendedBlockStorage storage = expected.dataArray[section.getByte("Y")];
+			assertArrayEquals(storage.getBlocklightArray().getData(), section.getByteArray("BlockLight"));
+			byte[] skyLight = (storage.getSkylightArray() != null) ? storage.getSkylightArray().getData() : new byte[2048];
+			assertArrayEquals(skyLight, section.getByteArray("SkyLight"));
+			if (section.hasKey("Add"))
+			{
+				addCount++;
+			}
+		}
+		return addCount;
+	}
+
+	// write a chunk and read it back with ChunkNbtReader. returns the number
+	// of sections with an "Add" array.
+	private static int checkRoundTrip(MwChunk chunk) throws IOException
+	{
+		byte[] bytes = writeChunk(chunk);
+		ChunkNbtReader reader = new ChunkNbtReader(new DataInputStream(new ByteArrayInputStream(bytes)));
+		reader.read();
+		assertEquals(chunk.x, reader.xPos);
+		assertEquals(chunk.z, reader.zPos);
+		checkBlocks(chunk, reader.data, reader.biomeArray);
+		return checkLight(chunk, bytes);
+	}
+
+	private static void checkChunk(MwChunk chunk) throws IOException
+	{
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		DataOutputStream expectedDos = new DataOutputStream(expected);
+		CompressedStreamTools.write(writeChunkToNBT(chunk), expectedDos);
+		expectedDos.close();
+
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		DataOutputStream actualDos = new DataOutputStream(actual);
+		ChunkNbtWriter.get().write(chunk, actualDos);
+		actualDos.close();
+
+		assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+	}
+
+	@Test
+	public void sectionsWithSkyLight() throws IOException
+	{
+		checkChunk(makeChunk(1, true, false));
+	}
+
+	@Test
+	public void sectionsWithoutSkyLight() throws IOException
+	{
+		checkChunk(makeChunk(2, false, false));
+	}
+
+	@Test
+	public void emptyChunk() throws IOException
+	{
+		checkChunk(new MwChunk(0, 0, 0, new ExtendedBlockStorage[16], new byte[256], new HashMap<BlockPos, TileEntity>()));
+	}
+
+	@Test
+	public void tileEntities() throws IOException
+	{
+		checkChunk(makeChunk(3, true, true));
+	}
+
+	@Test
+	public void repeatedWrites() throws IOException
+	{
+		// the per thread scratch arrays must not leak data between chunks
+		for (long seed = 10; seed < 20; seed++)
+		{
+			checkChunk(makeChunk(seed, (seed & 1) == 0, false));
+		}
+	}
+
+	@Test
+	public void roundTrip() throws IOException
+	{
+		for (long seed = 20; seed < 30; seed++)
+		{
+			MwChunk chunk = makeChunk(seed, (seed & 1) == 0, (seed % 3) == 0);
+			// every section holds some blocks of highBlock
+			int sectionCount = 0;
+			for (ExtendedBlockStorage storage : chunk.dataArray)
+			{
+				if (storage != Chunk.NULL_BLOCK_STORAGE)
+				{
+					sectionCount++;
+				}
+			}
+			assertEquals(sectionCount, checkRoundTrip(chunk));
+		}
+	}
+
+	@Test
+	public void roundTripLowBlockIds() throws IOException
+	{
+		// a section with only ids below 256 has no "Add" array
+		ExtendedBlockStorage[] data = new ExtendedBlockStorage[16];
+		data[2] = new ExtendedBlockStorage(2 << 4, true);
+		data[2].set(1, 2, 3, Blocks.WOOL.getStateFromMeta(7));
+		data[2].set(15, 15, 15, Blocks.STONE.getDefaultState());
+		data[2].getBlocklightArray().set(1, 2, 3, 9);
+		data[2].getSkylightArray().set(4, 5, 6, 15);
+		byte[] biomes = new byte[256];
+		biomes[17] = 5;
+		MwChunk chunk = new MwChunk(-3, 8, 0, data, biomes, new HashMap<BlockPos, TileEntity>());
+		assertEquals(0, checkRoundTrip(chunk));
+	}
+
+	@Test
+	public void roundTripThroughRegionFile() throws IOException
+	{
+		File worldDir = Files.createTempDirectory("mwchunk").toFile();
+		RegionFileCache regionFileCache = new RegionFileCache(worldDir);
+		try
+		{
+			MwChunk chunk = makeChunk(30, true, false);
+			RegionFile regionFile = regionFileCache.acquireRegionFile(chunk.x << 4, chunk.z << 4, 0);
+			try
+			{
+				synchronized (regionFile)
+				{
+					assertFalse(regionFile.open());
+					DataOutputStream dos = regionFile.getChunkDataOutputStream(chunk.x & 31, chunk.z & 31);
+					ChunkNbtWriter.get().write(chunk, dos);
+					dos.close();
+				}
+			}
+			finally
+			{
+				regionFileCache.releaseRegionFile(regionFile);
+			}
+			MwChunk readChunk = MwChunk.read(chunk.x, chunk.z, 0, regionFileCache);
+			checkBlocks(chunk, readChunk.dataArray, readChunk.biomeArray);
+		}
+		finally
+		{
+			regionFileCache.close();
+			File regionDir = new File(worldDir, "region");
+			File[] files = regionDir.listFiles();
+			if (files != null)
+			{
+				for (File file : files)
+				{
+					file.delete();
+				}
+			}
+			regionDir.delete();
+			worldDir.delete();
+		}
+	}
+}
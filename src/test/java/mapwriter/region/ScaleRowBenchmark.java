@@ -0,0 +1,113 @@
+package mapwriter.region;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Compares the time taken to scale a full tile of pixels by 50% with
+ * scaleRow against calling getAverageOfPixelQuad for every destination
+ * pixel, which is how updateScaled worked before scaleRow was added.
+ *
+ * Not a unit test, run it with 'gradlew scaleRowBenchmark'. The arguments
+ * are the number of rounds and the number of tiles scaled per round.
+ * Each round times both versions, alternating which goes first, and the
+ * minimum and median time per tile of each are printed at the end. The
+ * first quarter of the rounds are warm up and are not counted.
+ */
+public class ScaleRowBenchmark
+{
+	private static final int W = Region.SIZE / 2;
+
+	// the loop replaced by scaleRow, with the check for unset quads that
+	// scaleRow does so that both give the same pixels
+	static void scaleQuads(int[] srcPixels, int[] dstPixels)
+	{
+		for (int j = 0; j < W; j++)
+		{
+			for (int i = 0; i < W; i++)
+			{
+				int srcOffset = ((j * 2) << Region.SHIFT) + (i * 2);
+				int dstPixel = 0;
+				if ((srcPixels[srcOffset] | srcPixels[srcOffset + 1] | srcPixels[srcOffset + Region.SIZE] | srcPixels[srcOffset + Region.SIZE + 1]) != 0)
+				{
+					dstPixel = SurfacePixels.getAverageOfPixelQuad(srcPixels, srcOffset, Region.SIZE);
+				}
+				dstPixels[(j << Region.SHIFT) + i] = dstPixel;
+			}
+		}
+	}
+
+	static void scaleRows(int[] srcPixels, int[] dstPixels)
+	{
+		for (int j = 0; j < W; j++)
+		{
+			SurfacePixels.scaleRow(srcPixels, (j * 2) << Region.SHIFT, Region.SIZE, dstPixels, j << Region.SHIFT, W);
+		}
+	}
+
+	private static long time(boolean rows, int[] srcPixels, int[] dstPixels, int tiles)
+	{
+		long start = System.nanoTime();
+		for (int n = 0; n < tiles; n++)
+		{
+			if (rows)
+			{
+				scaleRows(srcPixels, dstPixels);
+			}
+			else
+			{
+				scaleQuads(srcPixels, dstPixels);
+			}
+		}
+		return (System.nanoTime() - start) / tiles;
+	}
+
+	private static String getStats(String name, long[] times)
+	{
+		long[] sorted = Arrays.copyOf(times, times.length);
+		Arrays.sort(sorted);
+		return String.format("%s: min %.1f us, median %.1f us per tile", name, sorted[0] / 1000.0, sorted[sorted.length / 2] / 1000.0);
+	}
+
+	public static void main(String[] args)
+	{
+		int rounds = (args.length > 0) ? Integer.parseInt(args[0]) : 40;
+		int tiles = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+
+		// a tile with some unset pixels, as at the edge of the explored area
+		Random random = new Random(19);
+		int[] srcPixels = new int[Region.SIZE * Region.SIZE];
+		for (int i = 0; i < srcPixels.length; i++)
+		{
+			srcPixels[i] = (random.nextInt(8) == 0) ? 0 : (0xff000000 | random.nextInt(0x1000000));
+		}
+		int[] quadPixels = new int[Region.SIZE * Region.SIZE];
+		int[] rowPixels = new int[Region.SIZE * Region.SIZE];
+
+		scaleQuads(srcPixels, quadPixels);
+		scaleRows(srcPixels, rowPixels);
+		if (!Arrays.equals(quadPixels, rowPixels))
+		{
+			throw new IllegalStateException("scaleRow and getAverageOfPixelQuad give different pixels");
+		}
+
+		int warmUp = rounds / 4;
+		long[] quadTimes = new long[rounds - warmUp];
+		long[] rowTimes = new long[rounds - warmUp];
+		for (int round = 0; round < rounds; round++)
+		{
+			boolean rowsFirst = (round & 1) == 0;
+			long first = time(rowsFirst, srcPixels, rowsFirst ? rowPixels : quadPixels, tiles);
+			long second = time(!rowsFirst, srcPixels, rowsFirst ? quadPixels : rowPixels, tiles);
+			if (round >= warmUp)
+			{
+				rowTimes[round - warmUp] = rowsFirst ? first : second;
+				quadTimes[round - warmUp] = rowsFirst ? second : first;
+			}
+		}
+
+		System.out.println(String.format("%d x %d tile scaled to %d x %d, %d rounds of %d tiles", Region.SIZE, Region.SIZE, W, W, quadTimes.length, tiles));
+		System.out.println(getStats("getAverageOfPixelQuad", quadTimes));
+		System.out.println(getStats("scaleRow", rowTimes));
+	}
+}
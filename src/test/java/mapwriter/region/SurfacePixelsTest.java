@@ -0,0 +1,123 @@
+package mapwriter.region;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * Checks that scaleRow, which averages the red and blue channels of a pixel
+ * quad together in one int, gives the same colour as averaging each channel
+ * of the quad separately with getAverageOfPixelQuad.
+ */
+public class SurfacePixelsTest
+{
+	// channel and alpha values at the edges of their range
+	private static final int[] EDGE_VALUES = new int[]
+	{
+			0x00, 0x01, 0x02, 0x03, 0x7f, 0x80, 0xfd, 0xfe, 0xff
+	};
+
+	private static int getPixel(int a, int r, int g, int b)
+	{
+		return (a << 24) | (r << 16) | (g << 8) | b;
+	}
+
+	// scale a single quad with scaleRow and compare it with
+	// getAverageOfPixelQuad
+	private static void checkQuad(int p00, int p01, int p10, int p11)
+	{
+		int[] src = new int[]
+		{
+				p00, p01, p10, p11
+		};
+		int[] dst = new int[1];
+		SurfacePixels.scaleRow(src, 0, 2, dst, 0, 1);
+		String message = String.format("quad %08x %08x %08x %08x", p00, p01, p10, p11);
+		if ((p00 | p01 | p10 | p11) == 0)
+		{
+			// a quad with no pixels set stays unset
+			assertEquals(message, 0, dst[0]);
+		}
+		else
+		{
+			assertEquals(message, SurfacePixels.getAverageOfPixelQuad(src, 0, 2), dst[0]);
+		}
+	}
+
+	@Test
+	public void uniformQuads()
+	{
+		for (int a : EDGE_VALUES)
+		{
+			for (int r : EDGE_VALUES)
+			{
+				for (int g : EDGE_VALUES)
+				{
+					for (int b : EDGE_VALUES)
+					{
+						int p = getPixel(a, r, g, b);
+						checkQuad(p, p, p, p);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void edgeQuads()
+	{
+		// every combination of edge values for each channel across the
+		// four pixels, with the other channels varied so carries between
+		// the packed red and blue sums would show up
+		for (int v0 : EDGE_VALUES)
+		{
+			for (int v1 : EDGE_VALUES)
+			{
+				for (int v2 : EDGE_VALUES)
+				{
+					for (int v3 : EDGE_VALUES)
+					{
+						checkQuad(getPixel(0xff, v0, v1, v2), getPixel(0x00, v1, v2, v3), getPixel(0x80, v2, v3, v0), getPixel(0xff, v3, v0, v1));
+						checkQuad(getPixel(v0, v0, 0xff, v0), getPixel(v1, v1, 0x00, v1), getPixel(v2, v2, 0xff, v2), getPixel(v3, v3, 0x00, v3));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void unsetPixels()
+	{
+		checkQuad(0, 0, 0, 0);
+		checkQuad(0xffffffff, 0, 0, 0);
+		checkQuad(0, 0, 0, 0xff000000);
+		checkQuad(0x00ffffff, 0, 0, 0);
+		checkQuad(0, 0x00000001, 0, 0);
+	}
+
+	@Test
+	public void randomRows()
+	{
+		Random random = new Random(19);
+		int w = Region.SIZE / 2;
+		int[] src = new int[Region.SIZE * 2];
+		int[] dst = new int[w];
+		for (int n = 0; n < 200; n++)
+		{
+			for (int i = 0; i < src.length; i++)
+			{
+				int choice = random.nextInt(8);
+				src[i] = (choice == 0) ? 0 : ((choice == 1) ? -1 : random.nextInt());
+			}
+			SurfacePixels.scaleRow(src, 0, Region.SIZE, dst, 0, w);
+			for (int i = 0; i < w; i++)
+			{
+				int offset = i * 2;
+				int expected = ((src[offset] | src[offset + 1] | src[offset + Region.SIZE] | src[offset + Region.SIZE + 1]) != 0) ? SurfacePixels.getAverageOfPixelQuad(src, offset, Region.SIZE) : 0;
+				assertEquals(expected, dst[i]);
+			}
+		}
+	}
+}